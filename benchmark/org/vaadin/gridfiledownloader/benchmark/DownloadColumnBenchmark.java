@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vaadin.server.VaadinSession;
+
+/**
+ * Cost of recalculating the download column on wide Grids, see
+ * {@link org.vaadin.gridfiledownloader.GridFileDownloader#recalculateDownloadColumn()}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DownloadColumnBenchmark {
+
+    @Param({ "10", "100", "500" })
+    public int columns;
+
+    private DownloaderFixture fixture;
+
+    @Setup
+    public void setup() {
+        fixture = new DownloaderFixture(10, columns, new byte[0]);
+    }
+
+    @Benchmark
+    public void recalculateDownloadColumn() {
+        VaadinSession session = fixture.getSession();
+        session.lock();
+        try {
+            fixture.getDownloader().recalculateDownloadColumn();
+        } finally {
+            session.unlock();
+        }
+    }
+}
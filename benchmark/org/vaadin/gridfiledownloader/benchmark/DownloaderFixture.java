@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.vaadin.gridfiledownloader.GridFileDownloader;
+import org.vaadin.gridfiledownloader.GridFileDownloader.GridStreamResource;
+
+import com.vaadin.data.util.IndexedContainer;
+import com.vaadin.server.Extension;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.server.communication.data.RpcDataProviderExtension;
+import com.vaadin.ui.Grid;
+import com.vaadin.ui.UI;
+
+/**
+ * A Grid with a {@link GridFileDownloader} attached to a session that only
+ * exists in memory, so that the download path can be run without a servlet
+ * container. Every row downloads the same payload.
+ */
+public class DownloaderFixture {
+
+    /**
+     * Session without a service that owns its lock. Unlocking only releases
+     * the lock, as there are no access tasks or push connections to handle.
+     */
+    static class MockSession extends VaadinSession {
+        private static final long serialVersionUID = 1L;
+        private final Lock lock = new ReentrantLock();
+
+        MockSession() {
+            super(null);
+        }
+
+        @Override
+        public Lock getLockInstance() {
+            return lock;
+        }
+
+        @Override
+        public void unlock() {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Exposes the RPC side of the row handoff to the benchmarks.
+     */
+    public static class BenchmarkDownloader extends GridFileDownloader {
+
+        private static final long serialVersionUID = 1L;
+
+        BenchmarkDownloader(Grid grid, GridStreamResource gridStreamResource) {
+            super(grid, gridStreamResource);
+        }
+
+        /**
+         * Delivers the row like the RPC call of a click does.
+         */
+        public void deliverRow(Object rowId) {
+            queueRows(Collections.singletonList(rowId), false);
+        }
+    }
+
+    private final VaadinSession session = new MockSession();
+    private final IndexedContainer container = new IndexedContainer();
+    private final Grid grid;
+    private final BenchmarkDownloader downloader;
+
+    /**
+     * @param rows
+     *            number of rows in the Grid
+     * @param columns
+     *            number of columns in the Grid besides the download column
+     * @param payload
+     *            content of every download
+     */
+    public DownloaderFixture(int rows, int columns, final byte[] payload) {
+        for (int i = 0; i < columns; ++i) {
+            container.addContainerProperty("column" + i, String.class, "");
+        }
+        for (int i = 0; i < rows; ++i) {
+            container.addItem(Integer.valueOf(i));
+        }
+        grid = new Grid(container);
+        downloader = new BenchmarkDownloader(grid, new GridStreamResource() {
+
+            @Override
+            public InputStream getStream() {
+                return new ByteArrayInputStream(payload);
+            }
+
+            @Override
+            public String getFilename() {
+                return "file.bin";
+            }
+        });
+
+        session.lock();
+        try {
+            UI ui = new UI() {
+
+                @Override
+                protected void init(VaadinRequest request) {
+                }
+            };
+            ui.setSession(session);
+            ui.setContent(grid);
+        } finally {
+            session.unlock();
+        }
+    }
+
+    public VaadinSession getSession() {
+        return session;
+    }
+
+    public Grid getGrid() {
+        return grid;
+    }
+
+    public BenchmarkDownloader getDownloader() {
+        return downloader;
+    }
+
+    public Object getItemId(int index) {
+        return container.getIdByIndex(index);
+    }
+
+    /**
+     * Returns the download path that identifies the given row by its key,
+     * registering the key like sending the row to the client-side does.
+     */
+    public String getRowKeyPath(Object itemId) {
+        session.lock();
+        try {
+            for (Extension extension : grid.getExtensions()) {
+                if (extension instanceof RpcDataProviderExtension) {
+                    return "dl/k/"
+                            + ((RpcDataProviderExtension) extension)
+                                    .getKeyMapper().key(itemId);
+                }
+            }
+            throw new IllegalStateException("Grid has no data provider");
+        } finally {
+            session.unlock();
+        }
+    }
+}
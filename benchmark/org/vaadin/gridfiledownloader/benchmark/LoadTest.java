@@ -0,0 +1,579 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.vaadin.gridfiledownloader.DownloadAdmission;
+import org.vaadin.gridfiledownloader.DownloadMetrics;
+import org.vaadin.gridfiledownloader.GridFileDownloader;
+import org.vaadin.gridfiledownloader.client.GridFileDownloaderServerRpc;
+import org.vaadin.gridfiledownloader.client.GridFileDownloaderState;
+
+import com.vaadin.server.VaadinServlet;
+import com.vaadin.shared.ApplicationConstants;
+
+import elemental.json.Json;
+import elemental.json.JsonArray;
+import elemental.json.JsonObject;
+import elemental.json.JsonType;
+import elemental.json.JsonValue;
+
+/**
+ * End-to-end load and soak test. Serves {@link LoadTestUI} from Jetty on
+ * localhost and drives simulated clients through the same requests as the
+ * browser: the UI is initialized, and every download is an RPC call about the
+ * row together with the download request. Some downloads are aborted after
+ * the first bytes and some requests never get their RPC call, so they time
+ * out.
+ * <p>
+ * Reports the latency percentiles and throughput of the downloads, the thread
+ * use of the server and the heap growth, and then checks that every stream of
+ * the resource was closed and that no row or processing state was left
+ * behind. Exits with status 1 if a check fails. Run with the benchmark
+ * configuration of ivy.xml, e.g.
+ *
+ * <pre>
+ * java -cp &lt;classes and benchmark jars&gt; org.vaadin.gridfiledownloader.benchmark.LoadTest [clients] [concurrency] [downloads per client] [payload bytes]
+ * </pre>
+ */
+public class LoadTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Share of the downloads that are aborted after the first bytes.
+     */
+    private static final double ABORT_RATIO = 0.05;
+
+    /**
+     * Share of the download requests that are sent without the RPC call.
+     */
+    private static final double TIMEOUT_RATIO = 0.02;
+
+    // the aborts and timeouts are logged on every occurrence, and the checks
+    // tell whether they were handled
+    private static final Logger DOWNLOADER_LOGGER = Logger
+            .getLogger(GridFileDownloader.class.getName());
+
+    private final int clients;
+    private final int concurrency;
+    private final int downloadsPerClient;
+    private final ExecutorService requestExecutor;
+    private String baseUrl;
+
+    private final List<Long> latencies = new ArrayList<Long>();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger aborted = new AtomicInteger();
+    private final AtomicInteger timedOut = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger downloadRequests = new AtomicInteger();
+    // rejected requests aren't processed, the connector would retry them
+    private final AtomicInteger rejectedRequests = new AtomicInteger();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    /**
+     * One browser with a session and a UI of its own.
+     */
+    private class SimulatedClient implements Callable<Void> {
+        private final Random random;
+        private String cookie;
+        private int uiId;
+        private String connectorId;
+        private String csrfToken;
+        private int syncId;
+        private int clientId;
+        // sequence number of the next click, as the connector numbers them
+        private int nextSequence = 0;
+
+        SimulatedClient(long seed) {
+            random = new Random(seed);
+        }
+
+        @Override
+        public Void call() throws Exception {
+            try {
+                init();
+            } catch (IOException e) {
+                failed.addAndGet(downloadsPerClient);
+                return null;
+            }
+            for (int i = 0; i < downloadsPerClient; ++i) {
+                download(random.nextInt(LoadTestUI.ROWS));
+            }
+            return null;
+        }
+
+        private void init() throws IOException {
+            HttpURLConnection connection = open(baseUrl
+                    + "?v-browserDetails=1&theme=valo&v-appId=loadtest"
+                    + "&v-sh=1080&v-sw=1920&v-cw=1920&v-ch=1000&v-vw=1920"
+                    + "&v-vh=1000&v-curdate=" + System.currentTimeMillis()
+                    + "&v-tzo=0&v-dstd=0&v-rtzo=0&v-dston=false&v-wn=loadtest"
+                    + "&v-loc=" + URLEncoder.encode(baseUrl, "UTF-8"));
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.getOutputStream().close();
+            String cookieHeader = connection.getHeaderField("Set-Cookie");
+            if (cookieHeader != null) {
+                cookie = cookieHeader.split(";", 2)[0];
+            }
+            JsonObject response = Json.parse(readString(connection));
+            uiId = (int) response.getNumber("v-uiId");
+            JsonObject uidl = Json.parse(response.getString("uidl"));
+            csrfToken = uidl
+                    .getString(ApplicationConstants.UIDL_SECURITY_TOKEN_ID);
+            synced(uidl);
+            connectorId = findConnector(uidl,
+                    LoadTestUI.LoadTestDownloader.class.getCanonicalName());
+        }
+
+        /**
+         * Sends the RPC call and the download request of one row like the
+         * connector does, and reads the content.
+         */
+        private void download(int rowIndex) throws Exception {
+            final boolean abort = random.nextDouble() < ABORT_RATIO;
+            final boolean skipRPC = !abort
+                    && random.nextDouble() < TIMEOUT_RATIO;
+            final int sequence = nextSequence++;
+            long start = System.nanoTime();
+            downloadRequests.incrementAndGet();
+            Future<Integer> request = requestExecutor
+                    .submit(new Callable<Integer>() {
+
+                        @Override
+                        public Integer call() throws IOException {
+                            return readDownload(abort, sequence);
+                        }
+                    });
+            if (!skipRPC) {
+                sendRPC("download", Json.create(rowIndex),
+                        Json.create(sequence));
+            }
+            int status = request.get();
+            long latency = System.nanoTime() - start;
+            if (status == HttpURLConnection.HTTP_UNAVAILABLE) {
+                rejectedRequests.incrementAndGet();
+                failed.incrementAndGet();
+            } else if (skipRPC) {
+                if (status == HttpURLConnection.HTTP_OK) {
+                    // another request's row leaked to this one
+                    failed.incrementAndGet();
+                } else {
+                    timedOut.incrementAndGet();
+                }
+            } else if (status != HttpURLConnection.HTTP_OK) {
+                failed.incrementAndGet();
+            } else if (abort) {
+                aborted.incrementAndGet();
+            } else {
+                completed.incrementAndGet();
+                synchronized (latencies) {
+                    latencies.add(latency);
+                }
+            }
+        }
+
+        private int readDownload(boolean abort, int sequence)
+                throws IOException {
+            HttpURLConnection connection = open(baseUrl + "APP/connector/"
+                    + uiId + "/" + connectorId + "/dl/"
+                    + GridFileDownloaderState.SEQUENCE_PATH + "/" + sequence);
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                drain(connection.getErrorStream());
+                return status;
+            }
+            InputStream in = connection.getInputStream();
+            byte[] buffer = new byte[8192];
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                total += read;
+                if (abort) {
+                    // closes the socket instead of returning it to the pool
+                    connection.disconnect();
+                    break;
+                }
+            }
+            if (!abort) {
+                in.close();
+            }
+            bytesReceived.addAndGet(total);
+            return status;
+        }
+
+        private void sendRPC(String method, JsonValue... parameters)
+                throws IOException {
+            JsonArray arguments = Json.createArray();
+            for (int i = 0; i < parameters.length; ++i) {
+                arguments.set(i, parameters[i]);
+            }
+            JsonArray invocation = Json.createArray();
+            invocation.set(0, connectorId);
+            invocation.set(1, GridFileDownloaderServerRpc.class.getName());
+            invocation.set(2, method);
+            invocation.set(3, arguments);
+            JsonArray invocations = Json.createArray();
+            invocations.set(0, invocation);
+            JsonObject message = Json.createObject();
+            message.put(ApplicationConstants.CSRF_TOKEN, csrfToken);
+            message.put(ApplicationConstants.RPC_INVOCATIONS, invocations);
+            message.put(ApplicationConstants.SERVER_SYNC_ID, syncId);
+            message.put(ApplicationConstants.CLIENT_TO_SERVER_ID, clientId);
+
+            HttpURLConnection connection = open(baseUrl
+                    + ApplicationConstants.UIDL_PATH + "/?v-uiId=" + uiId);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type",
+                    "application/json; charset=UTF-8");
+            OutputStream out = connection.getOutputStream();
+            out.write(message.toJson().getBytes(UTF8));
+            out.close();
+            String response = readString(connection);
+            // for(;;);[{...}]
+            JsonArray messages = Json.instance().parse(
+                    response.substring(response.indexOf('[')));
+            synced(messages.getObject(0));
+        }
+
+        private void synced(JsonObject uidl) {
+            if (uidl.hasKey(ApplicationConstants.SERVER_SYNC_ID)) {
+                syncId = (int) uidl
+                        .getNumber(ApplicationConstants.SERVER_SYNC_ID);
+            }
+            if (uidl.hasKey(ApplicationConstants.CLIENT_TO_SERVER_ID)) {
+                clientId = (int) uidl
+                        .getNumber(ApplicationConstants.CLIENT_TO_SERVER_ID);
+            }
+        }
+
+        private HttpURLConnection open(String url) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url)
+                    .openConnection();
+            connection.setUseCaches(false);
+            if (cookie != null) {
+                connection.setRequestProperty("Cookie", cookie);
+            }
+            return connection;
+        }
+    }
+
+    public LoadTest(int clients, int concurrency, int downloadsPerClient) {
+        this.clients = clients;
+        this.concurrency = concurrency;
+        this.downloadsPerClient = downloadsPerClient;
+        requestExecutor = Executors.newFixedThreadPool(concurrency);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int downloads = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        if (args.length > 3) {
+            LoadTestUI.setPayloadSize(Long.parseLong(args[3]));
+        }
+        DOWNLOADER_LOGGER.setLevel(Level.OFF);
+        boolean passed = new LoadTest(clients, concurrency, downloads).run();
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Starts the server, runs the clients and checks the results.
+     *
+     * @return {@code true} if all checks passed
+     */
+    public boolean run() throws Exception {
+        QueuedThreadPool threadPool = new QueuedThreadPool(concurrency * 2
+                + 50);
+        Server server = new Server(threadPool);
+        ServerConnector connector = new ServerConnector(server);
+        connector.setHost("127.0.0.1");
+        server.addConnector(connector);
+        ServletContextHandler context = new ServletContextHandler(
+                ServletContextHandler.SESSIONS);
+        ServletHolder servlet = new ServletHolder(new VaadinServlet());
+        servlet.setInitParameter("UI", LoadTestUI.class.getName());
+        servlet.setInitParameter("productionMode", "true");
+        context.addServlet(servlet, "/*");
+        server.setHandler(context);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + connector.getLocalPort() + "/";
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ExecutorService clientExecutor = Executors
+                .newFixedThreadPool(concurrency);
+        try {
+            // warm up the server with a few clients before measuring
+            runClients(clientExecutor, Math.min(clients, concurrency));
+            resetCounters();
+            memory.gc();
+            long heapBefore = memory.getHeapMemoryUsage().getUsed();
+            threads.resetPeakThreadCount();
+            BusyThreadSampler sampler = new BusyThreadSampler(threadPool);
+            sampler.start();
+
+            long start = System.nanoTime();
+            runClients(clientExecutor, clients);
+            long elapsed = System.nanoTime() - start;
+
+            sampler.interrupt();
+            sampler.join();
+            memory.gc();
+            long heapAfter = memory.getHeapMemoryUsage().getUsed();
+            report(elapsed, threads.getPeakThreadCount(),
+                    sampler.getMaxBusy(), heapAfter - heapBefore);
+            return check();
+        } finally {
+            clientExecutor.shutdownNow();
+            requestExecutor.shutdownNow();
+            server.stop();
+        }
+    }
+
+    private void runClients(ExecutorService executor, int count)
+            throws Exception {
+        List<Future<Void>> results = new ArrayList<Future<Void>>(count);
+        for (int i = 0; i < count; ++i) {
+            results.add(executor.submit(new SimulatedClient(i)));
+        }
+        for (Future<Void> result : results) {
+            result.get();
+        }
+    }
+
+    private void resetCounters() {
+        synchronized (latencies) {
+            latencies.clear();
+        }
+        completed.set(0);
+        aborted.set(0);
+        timedOut.set(0);
+        failed.set(0);
+        bytesReceived.set(0);
+    }
+
+    private void report(long elapsed, int peakThreads, int maxBusy,
+            long heapGrowth) {
+        long[] sorted;
+        synchronized (latencies) {
+            sorted = new long[latencies.size()];
+            for (int i = 0; i < sorted.length; ++i) {
+                sorted[i] = latencies.get(i);
+            }
+        }
+        Arrays.sort(sorted);
+        double seconds = elapsed / 1e9;
+        System.out.println("Clients:            " + clients + " ("
+                + concurrency + " at a time, " + downloadsPerClient
+                + " downloads each)");
+        System.out.println("Downloads:          " + completed + " completed, "
+                + aborted + " aborted, " + timedOut + " timed out, "
+                + failed + " failed");
+        System.out.printf("Latency:            p50 %.1f ms, p99 %.1f ms%n",
+                percentile(sorted, 0.50), percentile(sorted, 0.99));
+        System.out.printf("Throughput:         %.0f downloads/s, %.1f MB/s%n",
+                (completed.get() + aborted.get()) / seconds,
+                bytesReceived.get() / seconds / (1024 * 1024));
+        System.out.println("Threads:            peak " + peakThreads
+                + " in the JVM, at most " + maxBusy
+                + " busy in the container");
+        System.out.printf("Heap growth:        %.1f MB (%.1f kB per session)%n",
+                heapGrowth / (1024.0 * 1024), heapGrowth / 1024.0
+                        / Math.max(1, clients));
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    /**
+     * Checks that nothing was left behind by the downloads.
+     */
+    private boolean check() throws InterruptedException {
+        // aborted downloads notice the closed connection asynchronously
+        long deadline = System.currentTimeMillis() + 10000;
+        while (LoadTestUI.getClosedStreams() < LoadTestUI.getOpenedStreams()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        boolean passed = true;
+        passed &= check("every stream closed", LoadTestUI.getOpenedStreams()
+                + " opened, " + LoadTestUI.getClosedStreams() + " closed",
+                LoadTestUI.getOpenedStreams() == LoadTestUI.getClosedStreams());
+        passed &= check("no failed downloads", failed + " failed",
+                failed.get() == 0);
+
+        int processed = 0;
+        int rowsLeft = 0;
+        int queuedLeft = 0;
+        for (LoadTestUI ui : LoadTestUI.getUIs()) {
+            LoadTestUI.LoadTestDownloader downloader = ui.getDownloader();
+            processed += downloader.getProcessedCount();
+            if (downloader.getCurrentRowId() != null) {
+                ++rowsLeft;
+            }
+            if (downloader.hasQueuedRow()) {
+                ++queuedLeft;
+            }
+        }
+        int expected = downloadRequests.get() - rejectedRequests.get();
+        passed &= check("every request processed", processed + " of "
+                + expected, processed == expected);
+        passed &= check("no row left", rowsLeft + " downloaders",
+                rowsLeft == 0);
+        passed &= check("no queued row left", queuedLeft + " downloaders",
+                queuedLeft == 0);
+
+        DownloadMetrics metrics = DownloadMetrics.getInstance();
+        passed &= check("no download in progress",
+                metrics.getActiveDownloads() + " active, "
+                        + metrics.getWaitingForRow() + " waiting for row, "
+                        + metrics.getQueuedDownloads() + " queued",
+                metrics.getActiveDownloads() == 0
+                        && metrics.getWaitingForRow() == 0
+                        && metrics.getQueuedDownloads() == 0);
+        DownloadAdmission admission = DownloadAdmission.getGlobalAdmission();
+        passed &= check("no admission held", admission.getActive()
+                + " active, " + admission.getWaiting() + " waiting",
+                admission.getActive() == 0 && admission.getWaiting() == 0);
+        return passed;
+    }
+
+    private static boolean check(String name, String detail, boolean passed) {
+        System.out.println((passed ? "PASS " : "FAIL ") + name + " ("
+                + detail + ")");
+        return passed;
+    }
+
+    /**
+     * Samples the number of busy container threads.
+     */
+    private static class BusyThreadSampler extends Thread {
+        private final QueuedThreadPool threadPool;
+        private volatile int maxBusy = 0;
+
+        BusyThreadSampler(QueuedThreadPool threadPool) {
+            super("busy-thread-sampler");
+            this.threadPool = threadPool;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!isInterrupted()) {
+                    maxBusy = Math.max(maxBusy, threadPool.getBusyThreads());
+                    Thread.sleep(20);
+                }
+            } catch (InterruptedException e) {
+                // done
+            }
+        }
+
+        int getMaxBusy() {
+            return maxBusy;
+        }
+    }
+
+    /**
+     * Finds the id of the connector of the given server-side class in the
+     * initial UIDL.
+     */
+    private static String findConnector(JsonObject uidl, String className)
+            throws IOException {
+        JsonObject typeMappings = uidl.getObject("typeMappings");
+        JsonObject types = uidl.getObject("types");
+        if (typeMappings == null || types == null
+                || !typeMappings.hasKey(className)) {
+            throw new IOException("No " + className + " in the UI");
+        }
+        int tag = (int) typeMappings.getNumber(className);
+        for (String id : types.keys()) {
+            JsonValue type = types.get(id);
+            int typeTag = type.getType() == JsonType.NUMBER ? (int) type
+                    .asNumber() : Integer.parseInt(type.asString());
+            if (typeTag == tag) {
+                return id;
+            }
+        }
+        throw new IOException("No connector of type " + className);
+    }
+
+    private static String readString(HttpURLConnection connection)
+            throws IOException {
+        InputStream in = connection.getInputStream();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), UTF8);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) > 0) {
+                // keeps the connection reusable
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
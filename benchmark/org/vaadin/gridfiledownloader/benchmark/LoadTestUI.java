@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.vaadin.gridfiledownloader.GridFileDownloader;
+import org.vaadin.gridfiledownloader.GridFileDownloader.GridStreamResource;
+
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.ui.Grid;
+import com.vaadin.ui.UI;
+
+/**
+ * The UI that {@link LoadTest} serves: a Grid with a downloader whose
+ * resource counts the streams it opens and closes. The rows are always
+ * identified through RPC, like for rows whose data is not on the
+ * client-side.
+ */
+@SuppressWarnings("serial")
+public class LoadTestUI extends UI {
+
+    /**
+     * Number of rows in the Grid.
+     */
+    static final int ROWS = 100;
+
+    /**
+     * Time in milliseconds that a download request waits for its RPC call.
+     */
+    static final int RPC_TIMEOUT = 500;
+
+    private static final Set<LoadTestUI> UIS = Collections
+            .newSetFromMap(new ConcurrentHashMap<LoadTestUI, Boolean>());
+    private static final AtomicInteger OPENED = new AtomicInteger();
+    private static final AtomicInteger CLOSED = new AtomicInteger();
+    private static volatile long payloadSize = 256 * 1024;
+
+    private LoadTestDownloader downloader;
+
+    /**
+     * Exposes the state that must not leak between downloads.
+     */
+    public static class LoadTestDownloader extends GridFileDownloader {
+
+        LoadTestDownloader(Grid grid, GridStreamResource gridStreamResource) {
+            super(grid, gridStreamResource);
+        }
+
+        public Object getCurrentRowId() {
+            return getRowId();
+        }
+
+        public int getProcessedCount() {
+            return getState(false).processedCount;
+        }
+
+        /**
+         * Checks whether the queue still has a row that no request took.
+         */
+        public boolean hasQueuedRow() {
+            setAdaptiveRPCTimeout(false);
+            setRPCTimeout(1);
+            return waitForRPC();
+        }
+    }
+
+    /**
+     * Content of a row that is generated while read.
+     */
+    private static class CountedStream extends InputStream {
+        private long remaining = payloadSize;
+        private boolean closed = false;
+
+        CountedStream() {
+            OPENED.incrementAndGet();
+        }
+
+        @Override
+        public int read() {
+            if (remaining <= 0) {
+                return -1;
+            }
+            --remaining;
+            return (int) (remaining & 0x7f);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count = (int) Math.min(len, remaining);
+            for (int i = 0; i < count; ++i) {
+                b[off + i] = (byte) ((remaining - i) & 0x7f);
+            }
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                CLOSED.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    protected void init(VaadinRequest request) {
+        Grid grid = new Grid();
+        grid.addColumn("name");
+        for (int i = 0; i < ROWS; ++i) {
+            grid.addRow("row " + i);
+        }
+        downloader = new LoadTestDownloader(grid, new GridStreamResource() {
+
+            @Override
+            public InputStream getStream() {
+                return new CountedStream();
+            }
+
+            @Override
+            public String getFilename() {
+                return "row-" + downloader.getCurrentRowId() + ".bin";
+            }
+        });
+        downloader.setRowKeyInURL(false);
+        downloader.setRPCTimeout(RPC_TIMEOUT);
+        downloader.setAdaptiveRPCTimeout(false);
+        setContent(grid);
+        UIS.add(this);
+    }
+
+    @Override
+    public void detach() {
+        UIS.remove(this);
+        super.detach();
+    }
+
+    public LoadTestDownloader getDownloader() {
+        return downloader;
+    }
+
+    /**
+     * @return the UIs that are attached at the moment
+     */
+    static Set<LoadTestUI> getUIs() {
+        return UIS;
+    }
+
+    static void setPayloadSize(long size) {
+        payloadSize = size;
+    }
+
+    static int getOpenedStreams() {
+        return OPENED.get();
+    }
+
+    static int getClosedStreams() {
+        return CLOSED.get();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.vaadin.server.VaadinSession;
+
+/**
+ * Throughput of concurrent downloads from the same session, which all pass
+ * through the session lock, alone and together with UI requests that hold the
+ * lock for a while.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LockContentionBenchmark {
+
+    private static final int ROWS = 100;
+
+    /**
+     * Size of each download.
+     */
+    @Param({ "1024" })
+    public int payloadSize;
+
+    /**
+     * Amount of work a UI request does with the session locked, in
+     * {@link Blackhole#consumeCPU(long)} tokens.
+     */
+    @Param({ "1000" })
+    public long uiWork;
+
+    private DownloaderFixture fixture;
+    private String[] rowKeyPaths;
+    private final AtomicInteger nextRow = new AtomicInteger();
+
+    /**
+     * The row each thread keeps downloading.
+     */
+    @State(Scope.Thread)
+    public static class ThreadRow {
+        String path;
+
+        @Setup
+        public void setup(LockContentionBenchmark benchmark) {
+            path = benchmark.rowKeyPaths[benchmark.nextRow.getAndIncrement()
+                    % ROWS];
+        }
+    }
+
+    @Setup
+    public void setup() {
+        fixture = new DownloaderFixture(ROWS, 5, new byte[payloadSize]);
+        rowKeyPaths = new String[ROWS];
+        for (int i = 0; i < ROWS; ++i) {
+            rowKeyPaths[i] = fixture.getRowKeyPath(fixture.getItemId(i));
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long downloads(ThreadRow row) throws IOException {
+        return download(row);
+    }
+
+    @Benchmark
+    @Group("withUI")
+    @GroupThreads(3)
+    public long downloadsWithUI(ThreadRow row) throws IOException {
+        return download(row);
+    }
+
+    @Benchmark
+    @Group("withUI")
+    @GroupThreads(1)
+    public void uiRequests() {
+        VaadinSession session = fixture.getSession();
+        session.lock();
+        try {
+            Blackhole.consumeCPU(uiWork);
+        } finally {
+            session.unlock();
+        }
+    }
+
+    private long download(ThreadRow row) throws IOException {
+        MockResponse response = new MockResponse();
+        fixture.getDownloader().handleConnectorRequest(new MockRequest(),
+                response, row.path);
+        return response.getBytesWritten();
+    }
+}
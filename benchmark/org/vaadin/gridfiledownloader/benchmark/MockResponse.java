@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+
+import javax.servlet.http.Cookie;
+
+import com.vaadin.server.VaadinResponse;
+import com.vaadin.server.VaadinService;
+
+/**
+ * Response that discards its body and only remembers the status and the
+ * number of bytes written, so that the benchmarks measure the download code
+ * rather than the network.
+ */
+public class MockResponse implements VaadinResponse {
+
+    private static final long serialVersionUID = 1L;
+
+    private int status = 200;
+    private long bytesWritten = 0;
+
+    private final OutputStream outputStream = new OutputStream() {
+
+        @Override
+        public void write(int b) {
+            ++bytesWritten;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytesWritten += len;
+        }
+    };
+
+    public int getStatus() {
+        return status;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void setStatus(int statusCode) {
+        status = statusCode;
+    }
+
+    @Override
+    public void setContentType(String contentType) {
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+    }
+
+    @Override
+    public void setDateHeader(String name, long timestamp) {
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        return new PrintWriter(outputStream);
+    }
+
+    @Override
+    public void setCacheTime(long milliseconds) {
+    }
+
+    @Override
+    public void sendError(int errorCode, String message) throws IOException {
+        status = errorCode;
+    }
+
+    @Override
+    public VaadinService getService() {
+        return null;
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+    }
+
+    @Override
+    public void setContentLength(int len) {
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vaadin.server.VaadinSession;
+
+/**
+ * Latency of a download request that has to wait for the RPC call about the
+ * clicked row, compared to one that carries the row key in the URL. The RPC
+ * call is delivered from another thread under the session lock, after the
+ * given delay, like the UIDL request of the click would.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RpcHandoffBenchmark {
+
+    @Param({ "0", "100" })
+    public int rpcDelayMicros;
+
+    private DownloaderFixture fixture;
+    private Object itemId;
+    private String rowKeyPath;
+    private final SynchronousQueue<Object> clicks = new SynchronousQueue<Object>();
+    private Thread rpcThread;
+
+    @Setup
+    public void setup() {
+        fixture = new DownloaderFixture(100, 5, new byte[16]);
+        itemId = fixture.getItemId(0);
+        rowKeyPath = fixture.getRowKeyPath(itemId);
+        rpcThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                VaadinSession session = fixture.getSession();
+                try {
+                    while (true) {
+                        Object row = clicks.take();
+                        if (rpcDelayMicros > 0) {
+                            LockSupport.parkNanos(TimeUnit.MICROSECONDS
+                                    .toNanos(rpcDelayMicros));
+                        }
+                        session.lock();
+                        try {
+                            fixture.getDownloader().deliverRow(row);
+                        } finally {
+                            session.unlock();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // benchmark finished
+                }
+            }
+        }, "rpc");
+        rpcThread.setDaemon(true);
+        rpcThread.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        rpcThread.interrupt();
+    }
+
+    @Benchmark
+    public int rpcHandoff() throws IOException, InterruptedException {
+        MockResponse response = new MockResponse();
+        clicks.put(itemId);
+        fixture.getDownloader().handleConnectorRequest(new MockRequest(),
+                response, "dl");
+        return response.getStatus();
+    }
+
+    @Benchmark
+    public int rowKeyInURL() throws IOException {
+        MockResponse response = new MockResponse();
+        fixture.getDownloader().handleConnectorRequest(new MockRequest(),
+                response, rowKeyPath);
+        return response.getStatus();
+    }
+}
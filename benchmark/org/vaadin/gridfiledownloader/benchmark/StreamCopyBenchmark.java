@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to serve a whole download of different sizes, as is or gzip
+ * compressed. Divide the payload size by the score for the copy throughput.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StreamCopyBenchmark {
+
+    @Param({ "1024", "65536", "1048576", "16777216" })
+    public int payloadSize;
+
+    @Param({ "identity", "gzip" })
+    public String encoding;
+
+    private DownloaderFixture fixture;
+    private String rowKeyPath;
+    private MockRequest request;
+
+    @Setup
+    public void setup() {
+        // repetitive text compresses roughly like typical exports
+        byte[] payload = new byte[payloadSize];
+        byte[] line = "row;12345;some text;2016-01-01\n".getBytes();
+        for (int i = 0; i < payload.length; ++i) {
+            payload[i] = line[i % line.length];
+        }
+        fixture = new DownloaderFixture(10, 5, payload);
+        fixture.getDownloader().setCompressedContentTypes(
+                "application/octet-stream");
+        rowKeyPath = fixture.getRowKeyPath(fixture.getItemId(0));
+        request = new MockRequest().setHeader("Accept-Encoding", encoding);
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        MockResponse response = new MockResponse();
+        fixture.getDownloader().handleConnectorRequest(request, response,
+                rowKeyPath);
+        return response.getBytesWritten();
+    }
+}
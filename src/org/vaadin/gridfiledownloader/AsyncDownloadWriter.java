@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+
+import com.vaadin.server.Constants;
+import com.vaadin.server.VaadinRequest;
+
+/**
+ * Writes the content of a download with non-blocking servlet I/O. The request
+ * is put into asynchronous mode and the content is only read and written
+ * while the connection to the client can take more data, so slow clients
+ * don't occupy a container thread for the whole transfer.
+ * <p>
+ * Requires a Servlet 3.1 container and a servlet with async support enabled.
+ * This class must only be loaded after
+ * {@link AsyncWriteSupport#isSupported(VaadinRequest)} has returned
+ * {@code true}, as it refers to Servlet 3.1 types.
+ */
+class AsyncDownloadWriter implements WriteListener, AsyncListener {
+
+    /**
+     * Notified once when the transfer has ended.
+     */
+    interface Callback {
+        /**
+         * @param failure
+         *            the exception that ended the transfer, or {@code null} if
+         *            the content was sent completely
+         * @param outputFailed
+         *            {@code true} if writing to the client failed
+         */
+        void finished(Throwable failure, boolean outputFailed);
+    }
+
+    private final AsyncContext context;
+    private final ServletOutputStream out;
+    private final ReadableByteChannel source;
+    private final CountingResponse response;
+    private final Callback callback;
+    private final ByteBuffer buffer = ByteBuffer
+            .allocate(Constants.DEFAULT_BUFFER_SIZE);
+    private boolean finished = false;
+
+    private AsyncDownloadWriter(AsyncContext context,
+            ServletOutputStream out, ReadableByteChannel source,
+            CountingResponse response, Callback callback) {
+        this.context = context;
+        this.out = out;
+        this.source = source;
+        this.response = response;
+        this.callback = callback;
+        buffer.flip();
+    }
+
+    /**
+     * Puts the request into asynchronous mode and starts writing the source
+     * to the response once the connection is writable. The headers must have
+     * been set already. The callback is notified on a container thread.
+     *
+     * @param request
+     *            a request for which
+     *            {@link AsyncWriteSupport#isSupported(VaadinRequest)} returns
+     *            {@code true}
+     * @param response
+     * @param source
+     *            the content, closed when the transfer ends
+     * @param callback
+     * @throws IOException
+     */
+    static void start(VaadinRequest request, CountingResponse response,
+            ReadableByteChannel source, Callback callback) throws IOException {
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        AsyncContext context = httpRequest.startAsync();
+        // slow clients are what this is for, so the transfer may take a while
+        context.setTimeout(0);
+        ServletOutputStream out = context.getResponse().getOutputStream();
+        AsyncDownloadWriter writer = new AsyncDownloadWriter(context, out,
+                source, response, callback);
+        context.addListener(writer);
+        out.setWriteListener(writer);
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        try {
+            while (out.isReady()) {
+                if (!buffer.hasRemaining()) {
+                    buffer.clear();
+                    int read = source.read(buffer);
+                    buffer.flip();
+                    if (read < 0) {
+                        finish(null, false);
+                        return;
+                    }
+                    if (read == 0) {
+                        continue;
+                    }
+                }
+                int length = buffer.remaining();
+                try {
+                    out.write(buffer.array(), buffer.position(), length);
+                } catch (IOException e) {
+                    finish(e, true);
+                    return;
+                }
+                buffer.position(buffer.limit());
+                response.addBytesWritten(length);
+            }
+        } catch (IOException e) {
+            finish(e, false);
+        } catch (RuntimeException e) {
+            finish(e, false);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        finish(t, true);
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        // only reached first if the container ended the request on its own
+        finish(getFailure(event), true);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        finish(getFailure(event), true);
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        finish(getFailure(event), true);
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    private static Throwable getFailure(AsyncEvent event) {
+        if (event.getThrowable() != null) {
+            return event.getThrowable();
+        }
+        return new EOFException(
+                "Response ended before the content was sent completely");
+    }
+
+    private void finish(Throwable failure, boolean outputFailed) {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+        }
+        try {
+            source.close();
+        } catch (IOException ignore) {
+        }
+        try {
+            context.complete();
+        } catch (IllegalStateException ignore) {
+            // already completed by the container
+        }
+        callback.finished(failure, outputFailed);
+    }
+}
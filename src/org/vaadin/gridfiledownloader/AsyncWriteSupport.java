@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader;
+
+import java.lang.reflect.Method;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinServletRequest;
+
+/**
+ * Tells whether {@link AsyncDownloadWriter} can serve a request. This class
+ * only uses Servlet 3.0 types, so that it can be loaded on a Servlet 3.0
+ * container, where {@link AsyncDownloadWriter} itself can't be loaded and the
+ * downloads fall back to blocking writes.
+ */
+final class AsyncWriteSupport {
+
+    private static final boolean NON_BLOCKING_IO_AVAILABLE;
+
+    static {
+        boolean available = false;
+        try {
+            // looked up by name, as WriteListener doesn't exist before 3.1
+            for (Method method : ServletOutputStream.class.getMethods()) {
+                if ("setWriteListener".equals(method.getName())) {
+                    available = true;
+                    break;
+                }
+            }
+        } catch (LinkageError e) {
+            available = false;
+        }
+        NON_BLOCKING_IO_AVAILABLE = available;
+    }
+
+    private AsyncWriteSupport() {
+    }
+
+    /**
+     * @return {@code true} if the request can be served asynchronously
+     */
+    static boolean isSupported(VaadinRequest request) {
+        return NON_BLOCKING_IO_AVAILABLE
+                && request instanceof VaadinServletRequest
+                && ((HttpServletRequest) request).isAsyncSupported()
+                && !((HttpServletRequest) request).isAsyncStarted();
+    }
+}
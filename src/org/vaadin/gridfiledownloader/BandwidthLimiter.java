@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader;
+
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.vaadin.server.VaadinSession;
+
+/**
+ * Token bucket that limits the rate at which downloads are written to the
+ * clients. Downloads write in small chunks and wait in turn for the tokens of
+ * each chunk, so concurrent downloads sharing a limiter get an equal share of
+ * its bandwidth. The rate can be changed at any time and applies to the
+ * downloads in progress as well.
+ * <p>
+ * Downloads are limited by their own rate from
+ * {@link GridFileDownloader#setDownloadBandwidthLimit(long)}, the limiter of
+ * their session from {@link #getSessionLimiter(VaadinSession)} and the
+ * {@link #getGlobalLimiter() global limiter}. All of them are unlimited by
+ * default.
+ */
+public class BandwidthLimiter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Largest number of bytes written at once while a limit is in effect.
+     */
+    static final int CHUNK_SIZE = 8 * 1024;
+
+    /**
+     * Longest single wait, so that rate changes are noticed soon.
+     */
+    private static final long MAX_WAIT = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final BandwidthLimiter GLOBAL = new BandwidthLimiter(0);
+
+    // fair, so that waiting downloads take turns
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private volatile long bytesPerSecond;
+    private double tokens;
+    private long refilled = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond
+     *            the rate limit, or 0 for no limit
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        setBytesPerSecond(bytesPerSecond);
+        tokens = getBurstSize(bytesPerSecond);
+    }
+
+    /**
+     * Returns the limiter that is shared by all downloads of the server.
+     *
+     * @return the global limiter
+     */
+    public static BandwidthLimiter getGlobalLimiter() {
+        return GLOBAL;
+    }
+
+    /**
+     * Returns the limiter that is shared by all downloads of the given
+     * session, creating it if needed. The session must be locked.
+     *
+     * @param session
+     * @return the session limiter
+     */
+    public static BandwidthLimiter getSessionLimiter(VaadinSession session) {
+        BandwidthLimiter limiter = session.getAttribute(BandwidthLimiter.class);
+        if (limiter == null) {
+            limiter = new BandwidthLimiter(0);
+            session.setAttribute(BandwidthLimiter.class, limiter);
+        }
+        return limiter;
+    }
+
+    /**
+     * Sets the rate limit.
+     *
+     * @param bytesPerSecond
+     *            the rate limit, or 0 for no limit
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException(
+                    "Bandwidth limit must not be negative");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return {@code true} if a limit is in effect
+     */
+    public boolean isLimited() {
+        return bytesPerSecond > 0;
+    }
+
+    /**
+     * Waits until the given number of bytes may be written. At most
+     * {@link #CHUNK_SIZE} bytes should be acquired at once.
+     *
+     * @param bytes
+     * @throws InterruptedIOException
+     *             if the thread is interrupted while waiting
+     */
+    void acquire(int bytes) throws InterruptedIOException {
+        try {
+            lock.lockInterruptibly();
+            try {
+                while (true) {
+                    long rate = bytesPerSecond;
+                    long now = System.nanoTime();
+                    long elapsed = Math.max(0, now - refilled);
+                    refilled = now;
+                    if (rate <= 0) {
+                        return;
+                    }
+                    tokens = Math.min(getBurstSize(rate), tokens + elapsed
+                            * (double) rate / TimeUnit.SECONDS.toNanos(1));
+                    if (tokens >= bytes) {
+                        tokens -= bytes;
+                        return;
+                    }
+                    long wait = (long) ((bytes - tokens)
+                            * TimeUnit.SECONDS.toNanos(1) / rate);
+                    TimeUnit.NANOSECONDS.sleep(Math.max(1,
+                            Math.min(wait, MAX_WAIT)));
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while waiting for bandwidth");
+        }
+    }
+
+    /**
+     * Bytes that may be written in a burst after an idle period: a tenth of
+     * a second's worth, but at least one chunk.
+     */
+    private static double getBurstSize(long rate) {
+        return Math.max(rate / 10.0, CHUNK_SIZE);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Inclusive byte range of a HTTP {@code Range} request.
+ */
+final class ByteRange {
+
+    /**
+     * Upper limit for ranges in a single request, requests with more are
+     * answered with the full content.
+     */
+    static final int MAX_RANGES = 16;
+
+    final long start;
+    final long end;
+
+    ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    long getLength() {
+        return end - start + 1;
+    }
+
+    String toContentRange(long contentLength) {
+        return "bytes " + start + "-" + end + "/" + contentLength;
+    }
+
+    /**
+     * Parses the value of a {@code Range} header against content of the given
+     * length. Overlapping and adjacent ranges are merged.
+     *
+     * @param header
+     *            header value, e.g. {@code bytes=0-499,-500}
+     * @param contentLength
+     * @return the satisfiable ranges in ascending order, an empty list if none
+     *         of the ranges is satisfiable, or {@code null} if the header
+     *         isn't valid and should be ignored
+     */
+    static List<ByteRange> parse(String header, long contentLength) {
+        if (header == null || !header.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<ByteRange>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long start;
+            long end;
+            try {
+                if (dash == 0) {
+                    // suffix range: last n bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0) {
+                        return null;
+                    } else if (suffix == 0) {
+                        continue;
+                    }
+                    start = Math.max(0, contentLength - suffix);
+                    end = contentLength - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    String last = spec.substring(dash + 1);
+                    end = last.isEmpty() ? Long.MAX_VALUE : Long
+                            .parseLong(last);
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                    end = Math.min(end, contentLength - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start < contentLength && start <= end) {
+                ranges.add(new ByteRange(start, end));
+            }
+        }
+        return merge(ranges);
+    }
+
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        Collections.sort(ranges, new Comparator<ByteRange>() {
+
+            @Override
+            public int compare(ByteRange r1, ByteRange r2) {
+                return r1.start < r2.start ? -1 : r1.start == r2.start ? 0 : 1;
+            }
+        });
+        List<ByteRange> merged = new ArrayList<ByteRange>();
+        ByteRange current = ranges.get(0);
+        for (ByteRange range : ranges.subList(1, ranges.size())) {
+            if (range.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end,
+                        range.end));
+            } else {
+                merged.add(current);
+                current = range;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded in-memory cache of compressed content variants, so that frequently
+ * downloaded rows don't need to be compressed again for every request. The
+ * least recently used variants are evicted first.
+ * <p>
+ * Variants are keyed by row, content version and encoding, so only rows of a
+ * {@link GridFileDownloader.VersionedGridStreamResource} are cached. A cache
+ * may be shared by downloaders that serve the same content for the same row
+ * ids.
+ *
+ * @see GridFileDownloader#setCompressedContentCache(CompressedContentCache)
+ */
+public class CompressedContentCache {
+
+    private final long maxSize;
+    private final long maxEntrySize;
+    private long size = 0;
+    private final LinkedHashMap<Object, byte[]> entries = new LinkedHashMap<Object, byte[]>(
+            16, 0.75f, true);
+
+    /**
+     * Creates a cache that holds at most the given number of compressed
+     * bytes. Single variants larger than a quarter of that are not cached.
+     *
+     * @param maxSize
+     *            maximum total size of the cached variants in bytes
+     */
+    public CompressedContentCache(long maxSize) {
+        this(maxSize, maxSize / 4);
+    }
+
+    /**
+     * Creates a cache that holds at most the given number of compressed
+     * bytes.
+     *
+     * @param maxSize
+     *            maximum total size of the cached variants in bytes
+     * @param maxEntrySize
+     *            maximum size of a single cached variant in bytes
+     */
+    public CompressedContentCache(long maxSize, long maxEntrySize) {
+        if (maxSize < 0 || maxEntrySize < 0) {
+            throw new IllegalArgumentException(
+                    "Cache sizes must not be negative");
+        }
+        this.maxSize = maxSize;
+        this.maxEntrySize = Math.min(maxSize, maxEntrySize);
+    }
+
+    synchronized byte[] get(Object key) {
+        return entries.get(key);
+    }
+
+    synchronized void put(Object key, byte[] content) {
+        if (content.length > maxEntrySize) {
+            return;
+        }
+        byte[] old = entries.put(key, content);
+        if (old != null) {
+            size -= old.length;
+        }
+        size += content.length;
+        Iterator<Map.Entry<Object, byte[]>> eldest = entries.entrySet()
+                .iterator();
+        while (size > maxSize && eldest.hasNext()) {
+            size -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Returns a stream that writes to the given target and records the
+     * written bytes for the given key. The recorded variant is stored with
+     * {@link CapturingOutputStream#commit()}, unless it grew too large.
+     */
+    CapturingOutputStream capture(OutputStream target, Object key) {
+        return new CapturingOutputStream(target, key);
+    }
+
+    /**
+     * Removes all cached variants.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * @return total size of the cached variants in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    class CapturingOutputStream extends FilterOutputStream {
+        private final Object key;
+        private ByteArrayOutputStream captured = new ByteArrayOutputStream();
+
+        private CapturingOutputStream(OutputStream out, Object key) {
+            super(out);
+            this.key = key;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (captured != null) {
+                captured.write(b);
+                checkSize();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (captured != null) {
+                captured.write(b, off, len);
+                checkSize();
+            }
+        }
+
+        private void checkSize() {
+            if (captured.size() > maxEntrySize) {
+                captured = null;
+            }
+        }
+
+        /**
+         * Stores the bytes written so far as the cached variant.
+         */
+        void commit() {
+            if (captured != null) {
+                put(key, captured.toByteArray());
+                captured = null;
+            }
+        }
+    }
+}
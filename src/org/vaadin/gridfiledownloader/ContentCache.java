@@ -0,0 +1,413 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded cache for the content of rows, so that repeated downloads of the
+ * same row don't need to open the {@link GridFileDownloader.GridStreamResource}
+ * again. Small contents are kept on the heap and larger ones are spilled to
+ * temporary files. Entries are evicted when they get older than the maximum
+ * age, or least recently used first when a tier is full.
+ * <p>
+ * Rows of a {@link GridFileDownloader.VersionedGridStreamResource} are cached
+ * per version, so a changed version is never served from the cache. Other
+ * rows are cached by row id only and may be served until they expire.
+ * <p>
+ * The cache also holds the content that is prefetched for rows the user is
+ * about to download. Prefetched entries expire sooner until they are used.
+ * <p>
+ * A cache may be shared by downloaders of several sessions. Their content is
+ * kept apart per downloader, since the same row id may stand for different
+ * content for different users, unless the downloaders are given the same
+ * {@link GridFileDownloader#setContentCacheScope(Object) scope}.
+ *
+ * @see GridFileDownloader#setContentCache(ContentCache)
+ */
+public class ContentCache {
+
+    private static Logger getLogger() {
+        return Logger.getLogger(ContentCache.class.getName());
+    }
+
+    /**
+     * Cached content of a single row.
+     */
+    static class Entry {
+        private final byte[] content;
+        private final File file;
+        private final long length;
+        private final long created = System.currentTimeMillis();
+        private long maxAge;
+
+        private Entry(byte[] content, File file, long length, long maxAge) {
+            this.content = content;
+            this.file = file;
+            this.length = length;
+            this.maxAge = maxAge;
+        }
+
+        private boolean isExpired(long now) {
+            return now - created > maxAge;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        /**
+         * @return stream of the content, or {@code null} if the spilled file
+         *         is not available anymore
+         */
+        InputStream openStream() {
+            if (content != null) {
+                return new ByteArrayInputStream(content);
+            }
+            try {
+                return new FileInputStream(file);
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+        }
+    }
+
+    private final long maxHeapSize;
+    private final long maxDiskSize;
+    private final long maxAge;
+    private final File directory;
+    private long heapSize = 0;
+    private long diskSize = 0;
+    private final LinkedHashMap<Object, Entry> heapEntries = new LinkedHashMap<Object, Entry>(
+            16, 0.75f, true);
+    private final LinkedHashMap<Object, Entry> diskEntries = new LinkedHashMap<Object, Entry>(
+            16, 0.75f, true);
+
+    /**
+     * Creates a cache that only keeps contents on the heap.
+     *
+     * @param maxHeapSize
+     *            maximum total size of the contents on the heap in bytes
+     * @param maxAge
+     *            maximum age of an entry in milliseconds
+     */
+    public ContentCache(long maxHeapSize, long maxAge) {
+        this(maxHeapSize, 0, null, maxAge);
+    }
+
+    /**
+     * Creates a cache that keeps small contents on the heap and spills larger
+     * ones to temporary files. A single content may take at most a quarter of
+     * a tier.
+     *
+     * @param maxHeapSize
+     *            maximum total size of the contents on the heap in bytes
+     * @param maxDiskSize
+     *            maximum total size of the spilled contents in bytes
+     * @param directory
+     *            directory for the spilled contents, or {@code null} for the
+     *            default temporary directory
+     * @param maxAge
+     *            maximum age of an entry in milliseconds
+     */
+    public ContentCache(long maxHeapSize, long maxDiskSize, File directory,
+            long maxAge) {
+        if (maxHeapSize < 0 || maxDiskSize < 0 || maxAge < 0) {
+            throw new IllegalArgumentException(
+                    "Cache limits must not be negative");
+        }
+        this.maxHeapSize = maxHeapSize;
+        this.maxDiskSize = maxDiskSize;
+        this.directory = directory;
+        this.maxAge = maxAge;
+    }
+
+    synchronized Entry get(Object key) {
+        Entry entry = heapEntries.get(key);
+        if (entry == null) {
+            entry = diskEntries.get(key);
+        }
+        if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+            remove(key);
+            return null;
+        }
+        if (entry != null) {
+            // a used prefetch is kept like any other entry
+            entry.maxAge = maxAge;
+        }
+        return entry;
+    }
+
+    /**
+     * Tells whether the key has content that hasn't expired, without
+     * counting as a use of it.
+     */
+    synchronized boolean contains(Object key) {
+        Entry entry = heapEntries.get(key);
+        if (entry == null) {
+            entry = diskEntries.get(key);
+        }
+        return entry != null && !entry.isExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns a stream that reads the given source and stores what has been
+     * read as the content of the key once the end of the source is reached.
+     */
+    InputStream capture(Object key, InputStream source) {
+        return capture(key, source, maxAge);
+    }
+
+    /**
+     * Like {@link #capture(Object, InputStream)}, but the stored content
+     * expires after the given age unless it is used before that.
+     */
+    InputStream capture(Object key, InputStream source, long entryMaxAge) {
+        if (source == null || (maxHeapSize == 0 && maxDiskSize == 0)) {
+            return source;
+        }
+        return new CapturingInputStream(source, key, Math.min(entryMaxAge,
+                maxAge));
+    }
+
+    /**
+     * Tells whether a stream returned by {@link #capture} still records what
+     * is read from it. Once the capture has been abandoned, e.g. because the
+     * content is too large for the cache, reading the rest only for the cache
+     * is wasted work.
+     */
+    static boolean isCapturing(InputStream in) {
+        return in instanceof CapturingInputStream
+                && !((CapturingInputStream) in).done;
+    }
+
+    private synchronized void put(Object key, Entry entry) {
+        remove(key);
+        if (entry.file == null) {
+            heapEntries.put(key, entry);
+            heapSize += entry.length;
+        } else {
+            diskEntries.put(key, entry);
+            diskSize += entry.length;
+        }
+        evict();
+    }
+
+    private void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> heap = heapEntries.values().iterator();
+        while (heap.hasNext()) {
+            Entry entry = heap.next();
+            if (heapSize > maxHeapSize || entry.isExpired(now)) {
+                heapSize -= entry.length;
+                heap.remove();
+            }
+        }
+        Iterator<Entry> disk = diskEntries.values().iterator();
+        while (disk.hasNext()) {
+            Entry entry = disk.next();
+            if (diskSize > maxDiskSize || entry.isExpired(now)) {
+                diskSize -= entry.length;
+                disk.remove();
+                delete(entry.file);
+            }
+        }
+    }
+
+    private void remove(Object key) {
+        Entry entry = heapEntries.remove(key);
+        if (entry != null) {
+            heapSize -= entry.length;
+        }
+        entry = diskEntries.remove(key);
+        if (entry != null) {
+            diskSize -= entry.length;
+            delete(entry.file);
+        }
+    }
+
+    /**
+     * Removes all entries and their spilled files.
+     */
+    public synchronized void clear() {
+        for (Entry entry : diskEntries.values()) {
+            delete(entry.file);
+        }
+        heapEntries.clear();
+        diskEntries.clear();
+        heapSize = 0;
+        diskSize = 0;
+    }
+
+    /**
+     * @return total size of the contents on the heap in bytes
+     */
+    public synchronized long getHeapSize() {
+        return heapSize;
+    }
+
+    /**
+     * @return total size of the spilled contents in bytes
+     */
+    public synchronized long getDiskSize() {
+        return diskSize;
+    }
+
+    private static void delete(File file) {
+        // a download may still be reading the file, in which case some
+        // platforms only allow deleting it later
+        if (file != null && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private class CapturingInputStream extends FilterInputStream {
+        private final Object key;
+        private final long entryMaxAge;
+        private ByteArrayOutputStream heap = new ByteArrayOutputStream();
+        private File file;
+        private OutputStream fileOut;
+        private long length = 0;
+        private boolean done = false;
+
+        private CapturingInputStream(InputStream in, Object key,
+                long entryMaxAge) {
+            super(in);
+            this.key = key;
+            this.entryMaxAge = entryMaxAge;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                complete();
+            } else {
+                record(new byte[] { (byte) b }, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read < 0) {
+                complete();
+            } else {
+                record(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped content can't be cached
+            abandon();
+            return in.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                abandon();
+            }
+        }
+
+        private void record(byte[] b, int off, int len) {
+            if (done) {
+                return;
+            }
+            length += len;
+            try {
+                if (fileOut == null && length <= maxHeapSize / 4) {
+                    heap.write(b, off, len);
+                    return;
+                }
+                if (length > maxDiskSize / 4) {
+                    abandon();
+                    return;
+                }
+                if (fileOut == null) {
+                    file = File.createTempFile("gridfiledownloader", ".cache",
+                            directory);
+                    fileOut = new FileOutputStream(file);
+                    heap.writeTo(fileOut);
+                    heap = null;
+                }
+                fileOut.write(b, off, len);
+            } catch (IOException e) {
+                getLogger().log(Level.WARNING,
+                        "Failed to spill content to the cache", e);
+                abandon();
+            }
+        }
+
+        private void complete() {
+            if (done) {
+                return;
+            }
+            done = true;
+            if (fileOut == null) {
+                put(key, new Entry(heap.toByteArray(), null, length,
+                        entryMaxAge));
+                heap = null;
+                return;
+            }
+            try {
+                fileOut.close();
+                put(key, new Entry(null, file, length, entryMaxAge));
+            } catch (IOException e) {
+                delete(file);
+            }
+        }
+
+        private void abandon() {
+            if (done) {
+                return;
+            }
+            done = true;
+            heap = null;
+            if (fileOut != null) {
+                try {
+                    fileOut.close();
+                } catch (IOException ignore) {
+                }
+                delete(file);
+            }
+        }
+    }
+}
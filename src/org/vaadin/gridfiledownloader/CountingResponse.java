@@ -0,0 +1,229 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.Cookie;
+
+import com.vaadin.server.VaadinResponse;
+import com.vaadin.server.VaadinService;
+
+/**
+ * Response that counts the bytes written to its body and tells whether
+ * writing to the client failed, which separates client aborts from failures
+ * in the content. Writes are also held back to the rate of the
+ * {@link BandwidthLimiter}s of the download.
+ */
+class CountingResponse implements VaadinResponse {
+
+    private static final long serialVersionUID = 1L;
+
+    private final VaadinResponse response;
+    private CountingOutputStream outputStream;
+    private volatile long bytesWritten = 0;
+    private volatile long firstByteWritten = 0;
+    private volatile boolean outputFailed = false;
+    private List<BandwidthLimiter> bandwidthLimiters = Collections.emptyList();
+
+    CountingResponse(VaadinResponse response) {
+        this.response = response;
+    }
+
+    /**
+     * @return the wrapped response
+     */
+    VaadinResponse getResponse() {
+        return response;
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the first byte was written, or 0
+     */
+    long getFirstByteWritten() {
+        return firstByteWritten;
+    }
+
+    /**
+     * Records bytes that the container writes on behalf of the application,
+     * e.g. with sendfile.
+     */
+    void addBytesWritten(long bytes) {
+        if (firstByteWritten == 0) {
+            firstByteWritten = System.nanoTime();
+        }
+        bytesWritten += bytes;
+    }
+
+    /**
+     * Sets the limiters that are applied to the body, in the order the
+     * bandwidth is acquired from them.
+     */
+    void setBandwidthLimiters(List<BandwidthLimiter> bandwidthLimiters) {
+        this.bandwidthLimiters = bandwidthLimiters;
+    }
+
+    /**
+     * @return {@code true} if any of the limiters currently has a limit
+     */
+    boolean isBandwidthLimited() {
+        for (BandwidthLimiter limiter : bandwidthLimiters) {
+            if (limiter.isLimited()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void acquireBandwidth(int bytes) throws InterruptedIOException {
+        for (BandwidthLimiter limiter : bandwidthLimiters) {
+            if (limiter.isLimited()) {
+                limiter.acquire(bytes);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if writing to the client has failed
+     */
+    boolean isOutputFailed() {
+        return outputFailed;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            outputStream = new CountingOutputStream(response.getOutputStream());
+        }
+        return outputStream;
+    }
+
+    @Override
+    public void setStatus(int statusCode) {
+        response.setStatus(statusCode);
+    }
+
+    @Override
+    public void setContentType(String contentType) {
+        response.setContentType(contentType);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        response.setHeader(name, value);
+    }
+
+    @Override
+    public void setDateHeader(String name, long timestamp) {
+        response.setDateHeader(name, timestamp);
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        return response.getWriter();
+    }
+
+    @Override
+    public void setCacheTime(long milliseconds) {
+        response.setCacheTime(milliseconds);
+    }
+
+    @Override
+    public void sendError(int errorCode, String message) throws IOException {
+        response.sendError(errorCode, message);
+    }
+
+    @Override
+    public VaadinService getService() {
+        return response.getService();
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+        response.addCookie(cookie);
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        response.setContentLength(len);
+    }
+
+    private class CountingOutputStream extends FilterOutputStream {
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            acquireBandwidth(1);
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                outputFailed = true;
+                throw e;
+            }
+            addBytesWritten(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!isBandwidthLimited()) {
+                writeChunk(b, off, len);
+                return;
+            }
+            // small chunks let concurrent downloads take turns
+            while (len > 0) {
+                int chunk = Math.min(len, BandwidthLimiter.CHUNK_SIZE);
+                acquireBandwidth(chunk);
+                writeChunk(b, off, chunk);
+                off += chunk;
+                len -= chunk;
+            }
+        }
+
+        private void writeChunk(byte[] b, int off, int len)
+                throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                outputFailed = true;
+                throw e;
+            }
+            addBytesWritten(len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                outputFailed = true;
+                throw e;
+            }
+        }
+    }
+}
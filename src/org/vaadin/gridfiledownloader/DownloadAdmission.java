@@ -0,0 +1,255 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader;
+
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.vaadin.server.VaadinSession;
+
+/**
+ * Limits how many downloads may be in progress at the same time. Downloads
+ * beyond the limit wait in a bounded queue for a limited time, and are
+ * rejected right away when the queue is full, so that a spike of downloads
+ * can't exhaust the threads or memory of the server. Rejected downloads are
+ * answered with {@code 503 Service Unavailable} and a {@code Retry-After}
+ * header, see {@link GridFileDownloader#setRetryAfter(int)}, and the
+ * client-side retries them.
+ * <p>
+ * Downloads, archives and exports need a place from the admission of their
+ * session from {@link #getSessionAdmission(VaadinSession)} and from the
+ * {@link #getGlobalAdmission() global admission}. Both are unlimited by
+ * default.
+ * <p>
+ * A download keeps its places until its transfer ends, also when the content
+ * is written with non-blocking I/O after the request has been handled. Files
+ * aren't sent with sendfile while the concurrent downloads are limited,
+ * since the end of such a transfer can't be observed.
+ */
+public class DownloadAdmission implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final DownloadAdmission GLOBAL = new DownloadAdmission(0,
+            0, 0);
+
+    // fair, so that waiting downloads are admitted in order
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition available = lock.newCondition();
+    private volatile int maxConcurrent;
+    private volatile int maxWaiting;
+    private volatile long maxWait;
+    // requests don't survive serialization, so neither do their places
+    private transient int active = 0;
+    private transient int waiting = 0;
+
+    /**
+     * @param maxConcurrent
+     *            number of downloads in progress at the same time, or 0 for
+     *            no limit
+     * @param maxWaiting
+     *            number of downloads that may wait for a place
+     * @param maxWait
+     *            time in milliseconds that a download may wait for a place
+     */
+    public DownloadAdmission(int maxConcurrent, int maxWaiting, long maxWait) {
+        setMaxConcurrent(maxConcurrent);
+        setMaxWaiting(maxWaiting);
+        setMaxWait(maxWait);
+    }
+
+    /**
+     * Returns the admission that is shared by all downloads of the server.
+     *
+     * @return the global admission
+     */
+    public static DownloadAdmission getGlobalAdmission() {
+        return GLOBAL;
+    }
+
+    /**
+     * Returns the admission that is shared by all downloads of the given
+     * session, creating it if needed. The session must be locked.
+     *
+     * @param session
+     * @return the session admission
+     */
+    public static DownloadAdmission getSessionAdmission(VaadinSession session) {
+        DownloadAdmission admission = session
+                .getAttribute(DownloadAdmission.class);
+        if (admission == null) {
+            admission = new DownloadAdmission(0, 0, 0);
+            session.setAttribute(DownloadAdmission.class, admission);
+        }
+        return admission;
+    }
+
+    /**
+     * Sets the number of downloads that may be in progress at the same time.
+     * Downloads in progress are not affected when the limit is lowered.
+     *
+     * @param maxConcurrent
+     *            the limit, or 0 for no limit
+     */
+    public void setMaxConcurrent(int maxConcurrent) {
+        if (maxConcurrent < 0) {
+            throw new IllegalArgumentException(
+                    "Concurrent downloads must not be negative");
+        }
+        this.maxConcurrent = maxConcurrent;
+        lock.lock();
+        try {
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * Sets the number of downloads that may wait for a place while the limit
+     * is reached. Further downloads are rejected right away.
+     *
+     * @param maxWaiting
+     */
+    public void setMaxWaiting(int maxWaiting) {
+        if (maxWaiting < 0) {
+            throw new IllegalArgumentException(
+                    "Waiting downloads must not be negative");
+        }
+        this.maxWaiting = maxWaiting;
+    }
+
+    public int getMaxWaiting() {
+        return maxWaiting;
+    }
+
+    /**
+     * Sets the time that a download may wait for a place before it is
+     * rejected. Keep it short, as a waiting download occupies a request
+     * thread.
+     *
+     * @param maxWait
+     *            time in milliseconds
+     */
+    public void setMaxWait(long maxWait) {
+        if (maxWait < 0) {
+            throw new IllegalArgumentException(
+                    "Wait time must not be negative");
+        }
+        this.maxWait = maxWait;
+    }
+
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * @return the number of admitted downloads in progress
+     */
+    public int getActive() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of downloads waiting for a place
+     */
+    public int getWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a place for a download, waiting for one if the limit is reached
+     * and the queue has room. An admitted download must be
+     * {@link #release() released} when it ends.
+     *
+     * @return {@code true} if the download was admitted, {@code false} if it
+     *         was rejected
+     * @throws InterruptedIOException
+     *             if the thread is interrupted while waiting
+     */
+    boolean acquire() throws InterruptedIOException {
+        lock.lock();
+        try {
+            // arrivals queue up behind downloads that are already waiting
+            if (waiting == 0 && hasRoom()) {
+                ++active;
+                return true;
+            }
+            if (waiting >= maxWaiting) {
+                if (!hasRoom()) {
+                    return false;
+                }
+                ++active;
+                return true;
+            }
+            ++waiting;
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(maxWait);
+                while (!hasRoom()) {
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    remaining = available.awaitNanos(remaining);
+                }
+                ++active;
+                return true;
+            } finally {
+                --waiting;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while waiting for admission");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the place of an admitted download.
+     */
+    void release() {
+        lock.lock();
+        try {
+            active = Math.max(0, active - 1);
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean hasRoom() {
+        int limit = maxConcurrent;
+        return limit <= 0 || active < limit;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Totals of the downloads of all {@link GridFileDownloader}s in the class
+ * loader. Updating the totals only takes a few atomic increments per
+ * download. Register the metrics with {@link #registerMBean()} to monitor
+ * them through JMX.
+ */
+public class DownloadMetrics implements DownloadMetricsMBean {
+
+    /**
+     * Default JMX object name of the metrics.
+     */
+    public static final String OBJECT_NAME = "org.vaadin.gridfiledownloader:type=DownloadMetrics";
+
+    private static final DownloadMetrics INSTANCE = new DownloadMetrics();
+
+    private final AtomicLong downloads = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong aborted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong unresolved = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong rowResolutionTime = new AtomicLong();
+    private final AtomicLong queueTime = new AtomicLong();
+    private final AtomicLong lockWaitTime = new AtomicLong();
+    private final AtomicLong openTime = new AtomicLong();
+    private final AtomicLong firstByteTime = new AtomicLong();
+    private final AtomicLong transferTime = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger waitingForRow = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private DownloadMetrics() {
+    }
+
+    /**
+     * @return the metrics shared by all downloaders
+     */
+    public static DownloadMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server using
+     * {@link #OBJECT_NAME}.
+     *
+     * @throws JMException
+     *             if the registration fails, e.g. because the name is
+     *             already taken by another application
+     */
+    public static void registerMBean() throws JMException {
+        registerMBean(new ObjectName(OBJECT_NAME));
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server using the given
+     * name, e.g. to tell several applications in the same server apart.
+     *
+     * @param name
+     * @throws JMException
+     */
+    public static void registerMBean(ObjectName name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (!server.isRegistered(name)) {
+            server.registerMBean(INSTANCE, name);
+        }
+    }
+
+    /**
+     * Removes the metrics registered with {@link #OBJECT_NAME} from the
+     * platform MBean server.
+     *
+     * @throws JMException
+     */
+    public static void unregisterMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+
+    int downloadStarted() {
+        downloads.incrementAndGet();
+        return active.getAndIncrement();
+    }
+
+    void waitingForRow(boolean waiting) {
+        if (waiting) {
+            waitingForRow.incrementAndGet();
+        } else {
+            waitingForRow.decrementAndGet();
+        }
+    }
+
+    void queued(boolean queued) {
+        if (queued) {
+            this.queued.incrementAndGet();
+        } else {
+            this.queued.decrementAndGet();
+        }
+    }
+
+    void downloadFinished(DownloadStatistics statistics) {
+        active.decrementAndGet();
+        switch (statistics.getOutcome()) {
+        case COMPLETED:
+            completed.incrementAndGet();
+            break;
+        case ABORTED:
+            aborted.incrementAndGet();
+            break;
+        case FAILED:
+            failed.incrementAndGet();
+            break;
+        case UNRESOLVED:
+            unresolved.incrementAndGet();
+            break;
+        case REJECTED:
+            rejected.incrementAndGet();
+            break;
+        }
+        bytesSent.addAndGet(statistics.getBytesSent());
+        rowResolutionTime.addAndGet(statistics.getRowResolutionTime());
+        queueTime.addAndGet(statistics.getQueueTime());
+        lockWaitTime.addAndGet(statistics.getLockWaitTime());
+        openTime.addAndGet(statistics.getOpenTime());
+        firstByteTime.addAndGet(statistics.getFirstByteTime());
+        transferTime.addAndGet(statistics.getTransferTime());
+    }
+
+    @Override
+    public long getDownloadCount() {
+        return downloads.get();
+    }
+
+    @Override
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    @Override
+    public long getAbortedCount() {
+        return aborted.get();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    @Override
+    public long getUnresolvedCount() {
+        return unresolved.get();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    @Override
+    public int getActiveDownloads() {
+        return active.get();
+    }
+
+    @Override
+    public int getWaitingForRow() {
+        return waitingForRow.get();
+    }
+
+    @Override
+    public int getQueuedDownloads() {
+        return queued.get();
+    }
+
+    @Override
+    public double getAverageRowResolutionTime() {
+        return average(rowResolutionTime);
+    }
+
+    @Override
+    public double getAverageQueueTime() {
+        return average(queueTime);
+    }
+
+    @Override
+    public double getAverageLockWaitTime() {
+        return average(lockWaitTime);
+    }
+
+    @Override
+    public double getAverageOpenTime() {
+        return average(openTime);
+    }
+
+    @Override
+    public double getAverageFirstByteTime() {
+        return average(firstByteTime);
+    }
+
+    @Override
+    public double getAverageTransferTime() {
+        return average(transferTime);
+    }
+
+    /**
+     * @return average bytes per second over all transfers
+     */
+    @Override
+    public double getAverageThroughput() {
+        long nanos = transferTime.get();
+        if (nanos == 0) {
+            return 0;
+        }
+        return bytesSent.get() * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+
+    private double average(AtomicLong total) {
+        long count = downloads.get() - active.get();
+        if (count <= 0) {
+            return 0;
+        }
+        return total.get() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Resets the totals. Downloads in progress are still tracked.
+     */
+    @Override
+    public void reset() {
+        downloads.set(active.get());
+        for (AtomicLong total : new AtomicLong[] { completed, aborted, failed,
+                unresolved, rejected, bytesSent, rowResolutionTime, queueTime,
+                lockWaitTime, openTime, firstByteTime, transferTime }) {
+            total.set(0);
+        }
+    }
+}
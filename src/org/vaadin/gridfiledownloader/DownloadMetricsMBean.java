@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader;
+
+/**
+ * JMX view of the {@link DownloadMetrics}. Times are in milliseconds.
+ */
+public interface DownloadMetricsMBean {
+
+    long getDownloadCount();
+
+    long getCompletedCount();
+
+    long getAbortedCount();
+
+    long getFailedCount();
+
+    long getUnresolvedCount();
+
+    long getRejectedCount();
+
+    long getBytesSent();
+
+    int getActiveDownloads();
+
+    int getWaitingForRow();
+
+    int getQueuedDownloads();
+
+    double getAverageRowResolutionTime();
+
+    double getAverageQueueTime();
+
+    double getAverageLockWaitTime();
+
+    double getAverageOpenTime();
+
+    double getAverageFirstByteTime();
+
+    double getAverageTransferTime();
+
+    double getAverageThroughput();
+
+    void reset();
+}
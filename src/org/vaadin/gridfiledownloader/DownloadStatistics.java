@@ -0,0 +1,261 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Timings and outcome of a single download request, as reported to
+ * {@link GridFileDownloader.DownloadListener}s. All durations are in
+ * nanoseconds and zero for phases the download didn't go through.
+ */
+public class DownloadStatistics {
+
+    /**
+     * How a download request ended.
+     */
+    public enum Outcome {
+        /** The content was sent completely. */
+        COMPLETED,
+        /** The client went away before the content was sent completely. */
+        ABORTED,
+        /** Generating or sending the content failed on the server-side. */
+        FAILED,
+        /** The row of the request couldn't be resolved. */
+        UNRESOLVED,
+        /** The download was turned away because the server was too busy. */
+        REJECTED
+    }
+
+    private final GridFileDownloader downloader;
+    private final long started = System.nanoTime();
+    private final int concurrentDownloads;
+    private Object rowId;
+    private long rowResolutionTime;
+    private long queueTime;
+    private long lockWaitTime;
+    private long openTime;
+    private long firstByteTime;
+    private long transferTime;
+    private long bytesSent;
+    private long totalTime;
+    private Outcome outcome;
+    private Throwable failure;
+    private volatile boolean pending;
+    // place of the download in the session admission, released once by
+    // whoever ends the transfer
+    private final AtomicReference<DownloadAdmission> admission = new AtomicReference<DownloadAdmission>();
+
+    DownloadStatistics(GridFileDownloader downloader, int concurrentDownloads) {
+        this.downloader = downloader;
+        this.concurrentDownloads = concurrentDownloads;
+    }
+
+    public GridFileDownloader getDownloader() {
+        return downloader;
+    }
+
+    /**
+     * @return the downloaded row, or {@code null} if it couldn't be resolved
+     */
+    public Object getRowId() {
+        return rowId;
+    }
+
+    /**
+     * @return number of downloads that were in progress on the server when
+     *         this one arrived, not counting this one
+     */
+    public int getConcurrentDownloads() {
+        return concurrentDownloads;
+    }
+
+    /**
+     * @return time spent resolving the row, i.e. waiting for the RPC call or
+     *         looking up the row key
+     */
+    public long getRowResolutionTime() {
+        return rowResolutionTime;
+    }
+
+    /**
+     * @return time spent waiting for a thread of the content executor
+     */
+    public long getQueueTime() {
+        return queueTime;
+    }
+
+    /**
+     * @return time spent waiting for the session lock
+     */
+    public long getLockWaitTime() {
+        return lockWaitTime;
+    }
+
+    /**
+     * @return time spent resolving the file name and opening the content
+     */
+    public long getOpenTime() {
+        return openTime;
+    }
+
+    /**
+     * @return time from the content being opened until the first byte was
+     *         written to the response
+     */
+    public long getFirstByteTime() {
+        return firstByteTime;
+    }
+
+    /**
+     * @return time from the first byte until the response was finished
+     */
+    public long getTransferTime() {
+        return transferTime;
+    }
+
+    /**
+     * @return total time of the request from its arrival
+     */
+    public long getTotalTime() {
+        return totalTime;
+    }
+
+    /**
+     * @return number of bytes written to the response body
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return bytes per second during the transfer, or 0 if nothing was sent
+     */
+    public double getThroughput() {
+        if (transferTime <= 0 || bytesSent == 0) {
+            return 0;
+        }
+        return bytesSent * (double) TimeUnit.SECONDS.toNanos(1)
+                / transferTime;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * @return the exception that ended the download, or {@code null}
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    long getStarted() {
+        return started;
+    }
+
+    void setRowId(Object rowId) {
+        this.rowId = rowId;
+    }
+
+    void setRowResolutionTime(long rowResolutionTime) {
+        this.rowResolutionTime = rowResolutionTime;
+    }
+
+    void setQueueTime(long queueTime) {
+        this.queueTime = queueTime;
+    }
+
+    void setLockWaitTime(long lockWaitTime) {
+        this.lockWaitTime = lockWaitTime;
+    }
+
+    void setOpenTime(long openTime) {
+        this.openTime = openTime;
+    }
+
+    /**
+     * Records the transfer phases from the given response, which was
+     * written after the content was opened at the given time.
+     */
+    void setTransfer(CountingResponse response, long opened) {
+        bytesSent = response.getBytesWritten();
+        long firstByte = response.getFirstByteWritten();
+        long finished = System.nanoTime();
+        if (firstByte > 0) {
+            firstByteTime = Math.max(0, firstByte - opened);
+            transferTime = finished - firstByte;
+        }
+    }
+
+    /**
+     * Marks the transfer to continue after the request has been handled, in
+     * which case it is finished and reported by whoever completes it.
+     */
+    void setPending(boolean pending) {
+        this.pending = pending;
+    }
+
+    boolean isPending() {
+        return pending;
+    }
+
+    void setAdmission(DownloadAdmission sessionAdmission) {
+        admission.set(sessionAdmission);
+    }
+
+    DownloadAdmission getAdmission() {
+        return admission.get();
+    }
+
+    /**
+     * Takes the admission over for releasing it, so that it is released only
+     * once.
+     *
+     * @return the session admission, or {@code null} if it has been taken
+     *         already
+     */
+    DownloadAdmission takeAdmission() {
+        return admission.getAndSet(null);
+    }
+
+    boolean hasOutcome() {
+        return outcome != null;
+    }
+
+    void finish(Outcome outcome, Throwable failure) {
+        if (this.outcome == null) {
+            this.outcome = outcome;
+            this.failure = failure;
+            totalTime = System.nanoTime() - started;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Download of " + rowId + ": " + outcome + ", " + bytesSent
+                + " bytes in " + TimeUnit.NANOSECONDS.toMillis(totalTime)
+                + " ms (row " + TimeUnit.NANOSECONDS.toMillis(rowResolutionTime)
+                + " ms, queue " + TimeUnit.NANOSECONDS.toMillis(queueTime)
+                + " ms, lock " + TimeUnit.NANOSECONDS.toMillis(lockWaitTime)
+                + " ms, open " + TimeUnit.NANOSECONDS.toMillis(openTime)
+                + " ms, first byte "
+                + TimeUnit.NANOSECONDS.toMillis(firstByteTime)
+                + " ms, transfer "
+                + TimeUnit.NANOSECONDS.toMillis(transferTime) + " ms)";
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader;
+
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Creates and verifies the signed tokens of downloads that are served by a
+ * {@link SignedDownloadServlet} instead of the session. A token carries the
+ * identity and file name of the content and the time it expires, signed with
+ * HMAC-SHA256, so any server that knows the secret can serve the download
+ * without any state of its own. The file name is prefixed with its length in
+ * the signed payload, so no choice of name and identity can be read back as
+ * a different pair.
+ */
+public class DownloadTokens implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Shortest accepted secret in bytes.
+     */
+    public static final int MINIMUM_SECRET_LENGTH = 16;
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Content of a verified token.
+     */
+    public static class Token implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String identity;
+        private final String filename;
+        private final long expires;
+
+        private Token(String identity, String filename, long expires) {
+            this.identity = identity;
+            this.filename = filename;
+            this.expires = expires;
+        }
+
+        /**
+         * @return the identity of the content as given by
+         *         {@link GridFileDownloader.SignedGridStreamResource}
+         */
+        public String getIdentity() {
+            return identity;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        /**
+         * @return expiry time in milliseconds since the epoch
+         */
+        public long getExpires() {
+            return expires;
+        }
+    }
+
+    private final byte[] secret;
+
+    /**
+     * @param secret
+     *            key of the signatures, the same on all servers, at least
+     *            {@value #MINIMUM_SECRET_LENGTH} bytes of random data
+     */
+    public DownloadTokens(byte[] secret) {
+        if (secret == null || secret.length < MINIMUM_SECRET_LENGTH) {
+            throw new IllegalArgumentException("The secret must be at least "
+                    + MINIMUM_SECRET_LENGTH + " bytes long");
+        }
+        this.secret = secret.clone();
+    }
+
+    /**
+     * Creates a token for downloading the given content.
+     *
+     * @param identity
+     *            identity of the content that the servlet opens
+     * @param filename
+     *            file name of the download
+     * @param validity
+     *            time in milliseconds that the token may be used
+     * @return the token, safe to use as a path segment of a URL
+     */
+    public String createToken(String identity, String filename, long validity) {
+        long expires = System.currentTimeMillis() + validity;
+        byte[] name = filename.getBytes(UTF8);
+        byte[] header = (expires + "\n" + name.length + "\n").getBytes(UTF8);
+        byte[] id = identity.getBytes(UTF8);
+        byte[] payload = new byte[header.length + name.length + id.length];
+        System.arraycopy(header, 0, payload, 0, header.length);
+        System.arraycopy(name, 0, payload, header.length, name.length);
+        System.arraycopy(id, 0, payload, header.length + name.length,
+                id.length);
+        return toHex(payload) + "." + toHex(sign(payload));
+    }
+
+    /**
+     * Verifies the signature and expiry of the given token.
+     *
+     * @param token
+     * @return the content of the token, or {@code null} if the token is not
+     *         valid or has expired
+     */
+    public Token verify(String token) {
+        int dot = token != null ? token.indexOf('.') : -1;
+        if (dot < 0) {
+            return null;
+        }
+        byte[] payload = fromHex(token.substring(0, dot));
+        byte[] signature = fromHex(token.substring(dot + 1));
+        if (payload == null || signature == null
+                || !MessageDigest.isEqual(signature, sign(payload))) {
+            return null;
+        }
+        int first = indexOf(payload, (byte) '\n', 0);
+        int second = indexOf(payload, (byte) '\n', first + 1);
+        if (first < 0 || second < 0) {
+            return null;
+        }
+        long expires;
+        int nameLength;
+        try {
+            expires = Long.parseLong(new String(payload, 0, first, UTF8));
+            nameLength = Integer.parseInt(new String(payload, first + 1,
+                    second - first - 1, UTF8));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        int nameStart = second + 1;
+        if (nameLength < 0 || nameLength > payload.length - nameStart) {
+            return null;
+        }
+        if (expires < System.currentTimeMillis()) {
+            return null;
+        }
+        String filename = new String(payload, nameStart, nameLength, UTF8);
+        String identity = new String(payload, nameStart + nameLength,
+                payload.length - nameStart - nameLength, UTF8);
+        return new Token(identity, filename, expires);
+    }
+
+    private byte[] sign(byte[] payload) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(secret, ALGORITHM));
+            return mac.doFinal(payload);
+        } catch (GeneralSecurityException e) {
+            // every Java platform supports HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int from) {
+        if (from < 0) {
+            return -1;
+        }
+        for (int i = from; i < bytes.length; ++i) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader;
+
+import java.util.Locale;
+
+/**
+ * File formats for exporting the contents of the Grid with
+ * {@link GridFileDownloader#downloadGrid(ExportFormat)}.
+ */
+public enum ExportFormat {
+
+    /**
+     * Comma separated values in UTF-8, with a byte order mark so that
+     * spreadsheet applications recognise the encoding.
+     */
+    CSV("csv", "text/csv; charset=UTF-8"),
+
+    /**
+     * Office Open XML workbook. Rows that don't fit on one worksheet continue
+     * on the next one.
+     */
+    XLSX("xlsx",
+            "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
+
+    private final String extension;
+    private final String contentType;
+
+    private ExportFormat(String extension, String contentType) {
+        this.extension = extension;
+        this.contentType = contentType;
+    }
+
+    /**
+     * @return the file name extension without the dot
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Returns the format that the extension of the given file name stands
+     * for.
+     *
+     * @param filename
+     * @return the format, or {@code null} if the extension is not known
+     */
+    public static ExportFormat forFilename(String filename) {
+        if (filename != null) {
+            String lowerCase = filename.toLowerCase(Locale.ENGLISH);
+            for (ExportFormat format : values()) {
+                if (lowerCase.endsWith("." + format.extension)) {
+                    return format;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.vaadin.gridfiledownloader.GridFileDownloader.SeekableGridStreamResource;
+import org.vaadin.gridfiledownloader.GridFileDownloader.VersionedGridStreamResource;
+
+/**
+ * {@link GridFileDownloader.GridStreamResource} for rows whose content is a
+ * file on the local file system. The downloader lets Tomcat's sendfile
+ * support send these files without copying them through the JVM when it is
+ * available, and otherwise copies them with a plain buffer. It sets the
+ * {@code Content-Length} from the file size and supports resuming.
+ * <p>
+ * Implement {@link #getFile()} to return the file of the row given by
+ * {@link GridFileDownloader#getRowId()}.
+ */
+public abstract class FileGridStreamResource implements
+        SeekableGridStreamResource, VersionedGridStreamResource {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Returns the file of the row that is being downloaded.
+     *
+     * @return the file, never {@code null}
+     */
+    public abstract File getFile();
+
+    /**
+     * Returns the name of the file by default.
+     */
+    @Override
+    public String getFilename() {
+        return getFile().getName();
+    }
+
+    @Override
+    public InputStream getStream() {
+        return getStream(0);
+    }
+
+    @Override
+    public InputStream getStream(long offset) {
+        FileInputStream in;
+        try {
+            in = new FileInputStream(getFile());
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (offset > 0) {
+                in.getChannel().position(offset);
+            }
+            return in;
+        } catch (IOException e) {
+            try {
+                in.close();
+            } catch (IOException ignore) {
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public long getContentLength() {
+        File file = getFile();
+        return file.isFile() ? file.length() : -1;
+    }
+
+    @Override
+    public long getLastModified() {
+        long lastModified = getFile().lastModified();
+        return lastModified > 0 ? lastModified : -1;
+    }
+
+    /**
+     * Returns a tag derived from the size and modification time of the file.
+     */
+    @Override
+    public String getETag() {
+        File file = getFile();
+        if (!file.isFile()) {
+            return null;
+        }
+        return Long.toHexString(file.length()) + "-"
+                + Long.toHexString(file.lastModified());
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * Content of a row that is generated in the background into a temporary file,
+ * see {@link GridFileDownloader#setGenerationExecutor(Executor)}. The browser
+ * is told to download the file once it is ready.
+ * <p>
+ * While the content is generated, {@link #getCurrent()} returns the job, so
+ * that a slow {@link GridFileDownloader.GridStreamResource} can report its
+ * progress and stop early if the job has been cancelled.
+ */
+public class GenerationJob implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Shortest interval in milliseconds between progress updates sent to the
+     * browser.
+     */
+    static final long PROGRESS_INTERVAL = 250;
+
+    private static final ThreadLocal<GenerationJob> CURRENT = new ThreadLocal<GenerationJob>();
+
+    private final String id = UUID.randomUUID().toString();
+    private final GridFileDownloader downloader;
+    private final Object rowId;
+    private volatile String filename;
+    private volatile float progress = -1;
+    private volatile long progressReported = 0;
+    private volatile boolean cancelled = false;
+    private volatile boolean done = false;
+    private volatile long finishedAt = 0;
+    private volatile File file;
+    private volatile Throwable failure;
+    private transient Thread runner;
+
+    GenerationJob(GridFileDownloader downloader, Object rowId) {
+        this.downloader = downloader;
+        this.rowId = rowId;
+    }
+
+    /**
+     * Returns the job whose content is generated on the current thread.
+     *
+     * @return the job, or {@code null} if content is not generated in the
+     *         background on this thread
+     */
+    public static GenerationJob getCurrent() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return identifier of the job, unique within the server
+     */
+    public String getId() {
+        return id;
+    }
+
+    public Object getRowId() {
+        return rowId;
+    }
+
+    /**
+     * @return the name of the generated file, or {@code null} until
+     *         generation has started
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * @return the progress between 0 and 1, or -1 if not known
+     */
+    public float getProgress() {
+        return progress;
+    }
+
+    /**
+     * Reports the progress of the generation. Progress is measured
+     * automatically if the length of the content is known, otherwise a
+     * resource may report it itself. The browser is updated a few times per
+     * second at most, and only if the UI uses push or polling.
+     *
+     * @param progress
+     *            the progress between 0 and 1
+     */
+    public void setProgress(float progress) {
+        this.progress = Math.max(0, Math.min(1, progress));
+        long now = System.currentTimeMillis();
+        if (now - progressReported >= PROGRESS_INTERVAL) {
+            progressReported = now;
+            downloader.jobChanged(this);
+        }
+    }
+
+    /**
+     * Stops the generation, or deletes the generated file if it is ready
+     * already. A resource that generates content for a long time without
+     * writing should check {@link #isCancelled()} every now and then.
+     */
+    public void cancel() {
+        synchronized (this) {
+            cancelled = true;
+            if (runner != null) {
+                runner.interrupt();
+            }
+        }
+        downloader.jobDiscarded(this);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return {@code true} if generation has ended, successfully or not
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return {@code true} if the generated file can be downloaded
+     */
+    public boolean isReady() {
+        return done && !cancelled && file != null;
+    }
+
+    /**
+     * @return the exception that ended the generation, or {@code null}
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the time when generation ended in milliseconds since the epoch,
+     *         or 0 if it hasn't ended yet
+     */
+    long getFinishedAt() {
+        return finishedAt;
+    }
+
+    /**
+     * Binds the job to the current thread until {@link #finished} is called.
+     */
+    void started() {
+        runner = Thread.currentThread();
+        CURRENT.set(this);
+    }
+
+    void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+    /**
+     * Records the result of the generation. If the job has been cancelled in
+     * the meantime, the file is deleted.
+     *
+     * @return {@code true} if the file was kept
+     */
+    boolean finished(File file, Throwable failure) {
+        CURRENT.remove();
+        this.failure = failure;
+        synchronized (this) {
+            runner = null;
+            // clear a cancellation interrupt before the thread is reused
+            Thread.interrupted();
+            done = true;
+            finishedAt = System.currentTimeMillis();
+            if (!cancelled) {
+                this.file = file;
+                return true;
+            }
+        }
+        delete(file);
+        return false;
+    }
+
+    /**
+     * Deletes the generated file, if any.
+     */
+    synchronized void deleteFile() {
+        delete(file);
+        file = null;
+    }
+
+    private static void delete(File file) {
+        if (file != null && !file.delete() && file.exists()) {
+            file.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,542 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.vaadin.data.Container.Indexed;
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+import com.vaadin.data.util.converter.Converter;
+import com.vaadin.server.VaadinSession;
+
+/**
+ * Writes the rows of a container as CSV or XLSX straight to the response.
+ * The container is read in batches with the session locked, and while one
+ * batch is written the following ones are formatted in the background, so
+ * only a few batches are held in memory regardless of the size of the
+ * container.
+ */
+class GridExportWriter {
+
+    /**
+     * Number of batches read and formatted ahead of the one being written.
+     */
+    static final int PENDING_BATCHES = 4;
+
+    /**
+     * Rows per worksheet of an XLSX workbook, including the header row.
+     */
+    static final int XLSX_MAX_ROWS = 1048576;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte[] BYTE_ORDER_MARK = { (byte) 0xEF, (byte) 0xBB,
+            (byte) 0xBF };
+
+    /**
+     * A column of the export.
+     */
+    static class Column {
+        final Object propertyId;
+        final String header;
+        final Converter<?, ?> converter;
+
+        /**
+         * @param propertyId
+         * @param header
+         *            caption of the column
+         * @param converter
+         *            converter that formats the values of the column, or
+         *            {@code null} if the values are formatted with
+         *            {@link String#valueOf(Object)}. Called from several
+         *            threads.
+         */
+        Column(Object propertyId, String header, Converter<?, ?> converter) {
+            this.propertyId = propertyId;
+            this.header = header;
+            this.converter = converter;
+        }
+    }
+
+    /**
+     * Formatted rows of a batch, with the end offset of each row so that an
+     * XLSX workbook can move to the next worksheet between any two rows.
+     */
+    private static class Formatted {
+        final byte[] bytes;
+        final int[] rowEnds;
+
+        Formatted(byte[] bytes, int[] rowEnds) {
+            this.bytes = bytes;
+            this.rowEnds = rowEnds;
+        }
+    }
+
+    /**
+     * Batch of rows that is formatted in the background.
+     */
+    private class Batch implements Runnable {
+        private final Object[][] rows;
+        private Formatted formatted;
+        private RuntimeException failure;
+        private boolean done;
+
+        Batch(Object[][] rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public void run() {
+            Formatted result = null;
+            RuntimeException error = null;
+            try {
+                result = format(rows, true);
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            synchronized (this) {
+                formatted = result;
+                failure = error;
+                done = true;
+                notifyAll();
+            }
+        }
+
+        synchronized Formatted get() throws InterruptedIOException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                            "Interrupted while formatting export rows");
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return formatted;
+        }
+    }
+
+    private final VaadinSession session;
+    private final Indexed container;
+    private final List<Column> columns;
+    private final ExportFormat format;
+    private final int batchSize;
+    private final Executor executor;
+    private final Locale locale;
+    private int nextIndex = 0;
+    private final boolean escapeFormulas;
+    private boolean endReached = false;
+    // XLSX only
+    private ZipOutputStream zip;
+    private int sheetCount = 0;
+    private int sheetRows = 0;
+
+    /**
+     * @param session
+     *            the session that is locked while the container is read
+     * @param container
+     *            the rows to export, in order
+     * @param columns
+     *            the columns to export, in order
+     * @param format
+     * @param batchSize
+     *            number of rows read from the container at a time
+     * @param executor
+     *            executor for formatting the following batches, or
+     *            {@code null} to format them one at a time on the writing
+     *            thread
+     * @param locale
+     *            locale for the converters of the columns
+     * @param escapeFormulas
+     *            {@code true} to keep spreadsheets from evaluating CSV cells
+     *            as formulas
+     */
+    GridExportWriter(VaadinSession session, Indexed container,
+            List<Column> columns, ExportFormat format, int batchSize,
+            Executor executor, Locale locale, boolean escapeFormulas) {
+        this.session = session;
+        this.container = container;
+        this.columns = columns;
+        this.format = format;
+        this.batchSize = batchSize;
+        this.executor = executor;
+        this.locale = locale;
+        this.escapeFormulas = escapeFormulas;
+    }
+
+    void write(OutputStream out) throws IOException {
+        Object[] headers = new Object[columns.size()];
+        for (int i = 0; i < headers.length; ++i) {
+            headers[i] = columns.get(i).header;
+        }
+        Formatted header = format(new Object[][] { headers }, false);
+        if (format == ExportFormat.XLSX) {
+            zip = new ZipOutputStream(out);
+            out = zip;
+        } else {
+            out.write(BYTE_ORDER_MARK);
+            out.write(header.bytes);
+        }
+        Deque<Batch> pending = new ArrayDeque<Batch>();
+        try {
+            schedule(pending);
+            while (!pending.isEmpty()) {
+                Formatted rows = pending.removeFirst().get();
+                // read and format the following batches while this one is
+                // written
+                schedule(pending);
+                if (zip != null) {
+                    writeSheetRows(header, rows);
+                } else {
+                    out.write(rows.bytes);
+                }
+            }
+            if (zip != null) {
+                if (sheetCount == 0) {
+                    writeSheetRows(header, new Formatted(new byte[0],
+                            new int[0]));
+                }
+                endSheet();
+                writeWorkbook();
+                zip.finish();
+            }
+        } finally {
+            if (zip != null) {
+                zip.close();
+            }
+        }
+    }
+
+    private void schedule(Deque<Batch> pending) {
+        while (pending.size() < PENDING_BATCHES && !endReached) {
+            Object[][] rows = readBatch();
+            if (rows == null) {
+                return;
+            }
+            Batch batch = new Batch(rows);
+            pending.addLast(batch);
+            if (executor == null) {
+                batch.run();
+                return;
+            }
+            try {
+                executor.execute(batch);
+            } catch (RejectedExecutionException e) {
+                batch.run();
+            }
+        }
+    }
+
+    /**
+     * Reads the values of the next batch of rows with the session locked.
+     *
+     * @return the values, or {@code null} if all rows have been read
+     */
+    private Object[][] readBatch() {
+        session.lock();
+        try {
+            int size = container.size();
+            if (nextIndex >= size) {
+                endReached = true;
+                return null;
+            }
+            List<?> itemIds = container.getItemIds(nextIndex,
+                    Math.min(batchSize, size - nextIndex));
+            if (itemIds.isEmpty()) {
+                endReached = true;
+                return null;
+            }
+            nextIndex += itemIds.size();
+            Object[][] rows = new Object[itemIds.size()][];
+            for (int i = 0; i < rows.length; ++i) {
+                Object[] values = new Object[columns.size()];
+                Item item = container.getItem(itemIds.get(i));
+                if (item != null) {
+                    for (int c = 0; c < values.length; ++c) {
+                        Property<?> property = item
+                                .getItemProperty(columns.get(c).propertyId);
+                        values[c] = property != null ? property.getValue()
+                                : null;
+                    }
+                }
+                rows[i] = values;
+            }
+            return rows;
+        } finally {
+            session.unlock();
+        }
+    }
+
+    /**
+     * @param rows
+     * @param convert
+     *            {@code true} to format the values with the converters of the
+     *            columns, {@code false} for the header row
+     */
+    private Formatted format(Object[][] rows, boolean convert) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                rows.length * columns.size() * 16);
+        Writer writer = new OutputStreamWriter(bytes, UTF8);
+        int[] rowEnds = new int[rows.length];
+        try {
+            for (int i = 0; i < rows.length; ++i) {
+                if (format == ExportFormat.XLSX) {
+                    formatXlsxRow(writer, rows[i], convert);
+                } else {
+                    formatCsvRow(writer, rows[i], convert);
+                }
+                writer.flush();
+                rowEnds[i] = bytes.size();
+            }
+        } catch (IOException e) {
+            // not thrown by ByteArrayOutputStream
+            throw new RuntimeException(e);
+        }
+        return new Formatted(bytes.toByteArray(), rowEnds);
+    }
+
+    private void formatCsvRow(Writer writer, Object[] values, boolean convert)
+            throws IOException {
+        for (int c = 0; c < values.length; ++c) {
+            if (c > 0) {
+                writer.write(',');
+            }
+            String text = toText(c, values[c], convert);
+            if (escapeFormulas && !isNumber(values[c]) && isFormula(text)) {
+                // a leading apostrophe makes spreadsheets show it as text
+                text = "'" + text;
+            }
+            if (text.indexOf(',') < 0 && text.indexOf('"') < 0
+                    && text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+                writer.write(text);
+            } else {
+                writer.write('"');
+                writer.write(text.replace("\"", "\"\""));
+                writer.write('"');
+            }
+        }
+        writer.write("\r\n");
+    }
+
+    private void formatXlsxRow(Writer writer, Object[] values, boolean convert)
+            throws IOException {
+        writer.write("<row>");
+        for (int c = 0; c < values.length; ++c) {
+            Object value = values[c];
+            if (value == null) {
+                writer.write("<c/>");
+            } else if (isNumber(value)) {
+                writer.write("<c><v>");
+                writer.write(value instanceof BigDecimal ? ((BigDecimal) value)
+                        .toPlainString() : value.toString());
+                writer.write("</v></c>");
+            } else if (value instanceof Boolean) {
+                writer.write("<c t=\"b\"><v>");
+                writer.write(((Boolean) value).booleanValue() ? "1" : "0");
+                writer.write("</v></c>");
+            } else {
+                writer.write("<c t=\"inlineStr\"><is>"
+                        + "<t xml:space=\"preserve\">");
+                writeXml(writer, toText(c, value, convert));
+                writer.write("</t></is></c>");
+            }
+        }
+        writer.write("</row>");
+    }
+
+    /**
+     * Tells whether a spreadsheet would evaluate the text of a CSV cell as a
+     * formula.
+     */
+    private static boolean isFormula(String text) {
+        if (text.isEmpty()) {
+            return false;
+        }
+        char first = text.charAt(0);
+        return first == '=' || first == '+' || first == '-' || first == '@'
+                || first == '\t' || first == '\r';
+    }
+
+    private static boolean isNumber(Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            return !Double.isNaN(d) && !Double.isInfinite(d);
+        }
+        return value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte
+                || value instanceof BigDecimal
+                || value instanceof BigInteger;
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private String toText(int column, Object value, boolean convert) {
+        Converter converter = convert ? columns.get(column).converter : null;
+        if (converter != null
+                && converter.getPresentationType() == String.class
+                && (value == null || converter.getModelType().isInstance(
+                        value))) {
+            Object text = converter.convertToPresentation(value, String.class,
+                    locale);
+            return text != null ? (String) text : "";
+        }
+        return value != null ? String.valueOf(value) : "";
+    }
+
+    private static void writeXml(Writer writer, String text)
+            throws IOException {
+        for (int i = 0; i < text.length(); ++i) {
+            char ch = text.charAt(i);
+            switch (ch) {
+            case '<':
+                writer.write("&lt;");
+                break;
+            case '>':
+                writer.write("&gt;");
+                break;
+            case '&':
+                writer.write("&amp;");
+                break;
+            case '"':
+                writer.write("&quot;");
+                break;
+            default:
+                // control characters are not allowed in XML 1.0
+                if (ch >= 0x20 || ch == '\t' || ch == '\n' || ch == '\r') {
+                    writer.write(ch);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the rows to the current worksheet, starting a new one with the
+     * header row whenever the current one is full.
+     */
+    private void writeSheetRows(Formatted header, Formatted rows)
+            throws IOException {
+        if (sheetCount == 0) {
+            startSheet(header);
+        }
+        int start = 0;
+        int row = 0;
+        while (row < rows.rowEnds.length) {
+            int count = Math.min(rows.rowEnds.length - row, XLSX_MAX_ROWS
+                    - sheetRows);
+            if (count == 0) {
+                endSheet();
+                startSheet(header);
+                continue;
+            }
+            int end = rows.rowEnds[row + count - 1];
+            zip.write(rows.bytes, start, end - start);
+            start = end;
+            row += count;
+            sheetRows += count;
+        }
+    }
+
+    private void startSheet(Formatted header) throws IOException {
+        ++sheetCount;
+        zip.putNextEntry(new ZipEntry("xl/worksheets/sheet" + sheetCount
+                + ".xml"));
+        writeXmlEntryText("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+                + "<worksheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\"><sheetData>");
+        zip.write(header.bytes);
+        sheetRows = 1;
+    }
+
+    private void endSheet() throws IOException {
+        writeXmlEntryText("</sheetData></worksheet>");
+        zip.closeEntry();
+    }
+
+    /**
+     * Writes the parts of the workbook that refer to the worksheets, once
+     * their count is known.
+     */
+    private void writeWorkbook() throws IOException {
+        StringBuilder contentTypes = new StringBuilder(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+                        + "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+                        + "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>"
+                        + "<Default Extension=\"xml\" ContentType=\"application/xml\"/>"
+                        + "<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>");
+        StringBuilder workbook = new StringBuilder(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+                        + "<workbook xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\""
+                        + " xmlns:r=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships\"><sheets>");
+        StringBuilder workbookRels = new StringBuilder(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+                        + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">");
+        for (int i = 1; i <= sheetCount; ++i) {
+            contentTypes
+                    .append("<Override PartName=\"/xl/worksheets/sheet")
+                    .append(i)
+                    .append(".xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>");
+            workbook.append("<sheet name=\"Sheet").append(i)
+                    .append("\" sheetId=\"").append(i)
+                    .append("\" r:id=\"rId").append(i).append("\"/>");
+            workbookRels
+                    .append("<Relationship Id=\"rId")
+                    .append(i)
+                    .append("\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/worksheet\" Target=\"worksheets/sheet")
+                    .append(i).append(".xml\"/>");
+        }
+        contentTypes.append("</Types>");
+        workbook.append("</sheets></workbook>");
+        workbookRels.append("</Relationships>");
+
+        writeXmlEntry("[Content_Types].xml", contentTypes.toString());
+        writeXmlEntry(
+                "_rels/.rels",
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+                        + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+                        + "<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument\" Target=\"xl/workbook.xml\"/>"
+                        + "</Relationships>");
+        writeXmlEntry("xl/workbook.xml", workbook.toString());
+        writeXmlEntry("xl/_rels/workbook.xml.rels", workbookRels.toString());
+    }
+
+    private void writeXmlEntry(String name, String xml) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        writeXmlEntryText(xml);
+        zip.closeEntry();
+    }
+
+    private void writeXmlEntryText(String xml) throws IOException {
+        zip.write(xml.getBytes(UTF8));
+    }
+}
@@ -15,30 +15,90 @@
  */
 package org.vaadin.gridfiledownloader;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
+import javax.servlet.http.HttpServletResponse;
+
+import org.vaadin.gridfiledownloader.DownloadStatistics.Outcome;
+import org.vaadin.gridfiledownloader.client.GenerationJobState;
+import org.vaadin.gridfiledownloader.client.GridFileDownloaderClientRpc;
 import org.vaadin.gridfiledownloader.client.GridFileDownloaderServerRpc;
 import org.vaadin.gridfiledownloader.client.GridFileDownloaderState;
 
 import com.vaadin.annotations.StyleSheet;
 import com.vaadin.data.Container.Indexed;
-import com.vaadin.server.ConnectorResource;
+import com.vaadin.data.Item;
+import com.vaadin.data.util.GeneratedPropertyContainer;
+import com.vaadin.data.util.PropertyValueGenerator;
+import com.vaadin.server.Constants;
 import com.vaadin.server.DownloadStream;
+import com.vaadin.server.Extension;
 import com.vaadin.server.FileDownloader;
 import com.vaadin.server.FontAwesome;
-import com.vaadin.server.Resource;
 import com.vaadin.server.StreamResource;
 import com.vaadin.server.StreamResource.StreamSource;
 import com.vaadin.server.VaadinRequest;
 import com.vaadin.server.VaadinResponse;
 import com.vaadin.server.VaadinSession;
+import com.vaadin.server.communication.data.RpcDataProviderExtension;
 import com.vaadin.ui.AbstractComponent;
 import com.vaadin.ui.Grid;
 import com.vaadin.ui.Grid.MultiSelectionModel;
 import com.vaadin.ui.Notification;
 import com.vaadin.ui.Notification.Type;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
 import com.vaadin.ui.renderers.HtmlRenderer;
+import com.vaadin.util.CurrentInstance;
+import com.vaadin.util.FileTypeResolver;
 
 /**
  * This specialises {@link FileDownloader} for grid so that both the file name
@@ -54,23 +114,394 @@ public class GridFileDownloader extends FileDownloader {
 
     /**
      * Provide both the {@link StreamSource} and the filename in an on-demand
-     * way.
+     * way. The methods are called without the session lock, so that opening a
+     * slow source doesn't block the UI. Lock the session, e.g. with
+     * {@link UI#access(Runnable)}, before touching any components.
      */
     public interface GridStreamResource extends StreamSource {
         String getFilename();
     }
 
+    /**
+     * {@link GridStreamResource} that can be read from an arbitrary offset,
+     * which enables {@code Range} requests for resuming downloads. Like the
+     * other methods, these are called for the row returned by
+     * {@link GridFileDownloader#getRowId()}.
+     */
+    public interface SeekableGridStreamResource extends GridStreamResource {
+        /**
+         * @return the length of the content in bytes, or -1 if not known in
+         *         which case the full content is always sent
+         */
+        long getContentLength();
+
+        /**
+         * Opens the content starting from the given offset.
+         *
+         * @param offset
+         *            position of the first byte to read
+         * @return stream positioned at the offset
+         */
+        InputStream getStream(long offset);
+    }
+
+    /**
+     * {@link GridStreamResource} whose content may be the same for many rows,
+     * downloaders and sessions, e.g. a report that everybody downloads at the
+     * same time. Concurrent downloads with the same shared key read the
+     * content only once: the first one opens the stream, and the others get
+     * what it produces, including what was produced before they joined. The
+     * content is buffered on the heap up to a limit and in a temporary file
+     * beyond it until the last of these downloads is done.
+     */
+    public interface SharedGridStreamResource extends GridStreamResource {
+        /**
+         * Returns the identity of the content of the current row. Equal keys
+         * must stand for equal content across all sessions, so include
+         * everything the content depends on, e.g. the report and its period.
+         *
+         * @return the key, or {@code null} to read the content separately for
+         *         this download
+         */
+        Object getSharedKey();
+    }
+
+    /**
+     * {@link GridStreamResource} whose content can be opened without the
+     * session, by a {@link SignedDownloadServlet} that knows only its
+     * identity. See
+     * {@link GridFileDownloader#setSignedDownloads(String, DownloadTokens)}.
+     */
+    public interface SignedGridStreamResource extends GridStreamResource {
+        /**
+         * Returns the identity of the content of the current row, from which
+         * {@link SignedDownloadServlet#openContent(String)} opens it. The
+         * identity is signed but not encrypted, so the browser can read it.
+         *
+         * @return the identity, or {@code null} to download the row through
+         *         the session
+         */
+        String getDownloadIdentity();
+    }
+
+    /**
+     * {@link GridStreamResource} that can tell whether the content has
+     * changed. The validators are sent to the browser and used to check that
+     * a resumed download continues the same content.
+     */
+    public interface VersionedGridStreamResource extends GridStreamResource {
+        /**
+         * @return strong entity tag of the content without the surrounding
+         *         quotes, or {@code null} if not available
+         */
+        String getETag();
+
+        /**
+         * @return last modification time in milliseconds since the epoch, or
+         *         -1 if not available
+         */
+        long getLastModified();
+    }
+
+    /**
+     * Listener for the statistics of finished download requests.
+     *
+     * @see GridFileDownloader#addDownloadListener(DownloadListener)
+     */
+    public interface DownloadListener extends Serializable {
+        void downloadFinished(DownloadStatistics statistics);
+    }
+
+    /**
+     * Default maximum time in milliseconds to wait for the RPC call about the
+     * clicked row.
+     */
+    public static final int DEFAULT_RPC_TIMEOUT = 3000;
+
+    /**
+     * Lower limit in milliseconds for the adaptive RPC timeout.
+     */
+    public static final int MINIMUM_ADAPTIVE_RPC_TIMEOUT = 1000;
+
+    /**
+     * Multiplier applied to the measured average RPC latency when the RPC
+     * timeout is adaptive.
+     */
+    private static final int ADAPTIVE_RPC_TIMEOUT_FACTOR = 4;
+
+    /**
+     * Serializable monitor for handing the row over from the RPC call to the
+     * waiting download request.
+     */
+    private static final class RowIdLock implements Serializable {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Row of a download request that the RPC calls have queued, with the
+     * sequence number of the click that the request carries in its URL.
+     */
+    private static final class QueuedRow implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final Integer sequence;
+        private final Object rowId;
+
+        private QueuedRow(Integer sequence, Object rowId) {
+            this.sequence = sequence;
+            this.rowId = rowId;
+        }
+
+        private boolean matches(Integer sequence) {
+            return sequence == null || sequence.equals(this.sequence);
+        }
+    }
+
+    /**
+     * The row of a download that is processed on the current thread.
+     */
+    private static final class CurrentRow {
+        private final GridFileDownloader downloader;
+        private final Object rowId;
+
+        private CurrentRow(GridFileDownloader downloader, Object rowId) {
+            this.downloader = downloader;
+            this.rowId = rowId;
+        }
+    }
+
+    /**
+     * Stream to the file of a background generation that reports the progress
+     * to the job and stops writing once the job is cancelled.
+     */
+    private static final class ProgressOutputStream extends FilterOutputStream {
+        private final GenerationJob job;
+        private final long contentLength;
+        private long written = 0;
+
+        private ProgressOutputStream(OutputStream out, GenerationJob job,
+                long contentLength) {
+            super(out);
+            this.job = job;
+            this.contentLength = contentLength;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkCancelled();
+            out.write(b);
+            progress(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkCancelled();
+            out.write(b, off, len);
+            progress(len);
+        }
+
+        private void checkCancelled() throws InterruptedIOException {
+            if (job.isCancelled()) {
+                throw new InterruptedIOException("Generation was cancelled");
+            }
+        }
+
+        private void progress(int bytes) {
+            written += bytes;
+            if (contentLength > 0) {
+                job.setProgress((float) written / contentLength);
+            }
+        }
+    }
+
+    /**
+     * Stream that leaves the underlying stream open, so that the code which
+     * created it can still finish the response.
+     */
+    private static final class UnclosableOutputStream extends
+            FilterOutputStream {
+
+        private UnclosableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Default time in milliseconds that prefetched content is kept if the
+     * row doesn't get downloaded.
+     */
+    public static final long DEFAULT_PREFETCH_TTL = 30000;
+
+    /**
+     * Default number of rows read from the container at a time when the Grid
+     * is exported.
+     */
+    public static final int DEFAULT_EXPORT_BATCH_SIZE = 1000;
+
+    /**
+     * Default maximum number of downloads of a downloader that are generated
+     * in the background at the same time.
+     */
+    public static final int DEFAULT_MAX_GENERATION_JOBS = 2;
+
+    /**
+     * Default maximum number of finished background generations of a
+     * downloader whose files are kept for downloading.
+     */
+    public static final int DEFAULT_MAX_FINISHED_GENERATION_JOBS = 5;
+
+    /**
+     * Default time in milliseconds that the file of a finished background
+     * generation is kept for downloading.
+     */
+    public static final long DEFAULT_FINISHED_GENERATION_JOB_TTL = 30 * 60 * 1000L;
+
+    /**
+     * Default time in milliseconds that a signed download URL may be used.
+     */
+    public static final long DEFAULT_SIGNED_DOWNLOAD_VALIDITY = 60000;
+
+    /**
+     * Default time in seconds that the client-side waits before it retries a
+     * rejected download.
+     */
+    public static final int DEFAULT_RETRY_AFTER = 2;
+
+    /**
+     * Default time in milliseconds that the browser may reuse content opened
+     * from the open column without asking the server.
+     */
+    public static final long DEFAULT_OPEN_CACHE_TIME = 24 * 60 * 60 * 1000L;
+
+    private static final String ARCHIVE_KEY = "zip";
+    private static final String EXPORT_KEY = "export";
+
+    // request attributes of the sendfile support in Tomcat
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private static final ThreadLocal<CurrentRow> CURRENT_ROW = new ThreadLocal<CurrentRow>();
+
+    // set while the current thread runs a task of the content executor
+    private static final ThreadLocal<Boolean> CONTENT_TASK = new ThreadLocal<Boolean>();
+
     private static final long serialVersionUID = 1L;
     private final GridStreamResource gridStreamResource;
     private Grid grid;
     private Object downloadPropertyId;
-    private Object rowId;
+    private Object openPropertyId;
+    // part of the open URLs along with the id of the data provider, so that
+    // cached content of another session, UI or container is never reused for
+    // a row key
+    private final String openToken = UUID.randomUUID().toString();
+    private long openCacheTime = DEFAULT_OPEN_CACHE_TIME;
+    private volatile Object rowId;
+    private final RowIdLock rowIdLock = new RowIdLock();
+    // rows of download requests without the row key in the URL, in the order
+    // of the RPC calls, with null row ids for rows that couldn't be resolved
+    private final LinkedList<QueuedRow> queuedRows = new LinkedList<QueuedRow>();
+    private int rpcTimeout = DEFAULT_RPC_TIMEOUT;
+    private boolean adaptiveRPCTimeout = false;
+    private boolean asyncWrites = false;
+    private volatile long downloadBandwidthLimit = 0;
+    // limiters of the downloads in progress
+    private final List<BandwidthLimiter> downloadLimiters = new CopyOnWriteArrayList<BandwidthLimiter>();
+    // exponentially weighted moving average, negative until first measurement
+    private long averageRPCLatency = -1;
+    private transient Executor contentExecutor;
+    private Set<String> compressedContentTypes = Collections.emptySet();
+    private transient CompressedContentCache compressedContentCache;
+    private transient ContentCache contentCache;
+    // part of the keys of the content cache, so that a cache shared by
+    // several downloaders, sessions or users never serves the content of
+    // another downloader's rows
+    private Object contentCacheScope = openToken;
+    private transient Executor prefetchExecutor;
+    private long prefetchTTL = DEFAULT_PREFETCH_TTL;
+    private String exportFilename = "export";
+    private transient Executor generationExecutor;
+    private String signedDownloadUrl;
+    private DownloadTokens downloadTokens;
+    private long signedDownloadValidity = DEFAULT_SIGNED_DOWNLOAD_VALIDITY;
+    private int maxGenerationJobs = DEFAULT_MAX_GENERATION_JOBS;
+    private int maxFinishedGenerationJobs = DEFAULT_MAX_FINISHED_GENERATION_JOBS;
+    private long finishedGenerationJobTTL = DEFAULT_FINISHED_GENERATION_JOB_TTL;
+    private int retryAfter = DEFAULT_RETRY_AFTER;
+    private final Map<String, GenerationJob> generationJobs = new ConcurrentHashMap<String, GenerationJob>();
+    private int exportBatchSize = DEFAULT_EXPORT_BATCH_SIZE;
+    private boolean escapeCsvFormulas = true;
+    // rows whose content is being prefetched
+    private final Set<Object> prefetching = Collections
+            .newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+    private final List<DownloadListener> downloadListeners = new CopyOnWriteArrayList<DownloadListener>();
     private GridFileDownloaderServerRpc rpc = new GridFileDownloaderServerRpc() {
 
         @Override
-        public void download(Integer rowIndex) {
+        public void download(Integer rowIndex, int sequence) {
             if (rowIndex != null) {
-                setRowId(grid.getContainerDataSource().getIdByIndex(rowIndex));
+                queueRows(sequence, Collections.singletonList(grid
+                        .getContainerDataSource().getIdByIndex(rowIndex)),
+                        false);
+            }
+        }
+
+        @Override
+        public void downloadRows(List<String> rowKeys, int firstSequence,
+                boolean restart) {
+            List<Object> rowIds = new ArrayList<Object>(rowKeys.size());
+            for (String rowKey : rowKeys) {
+                Object rowId = resolveRowKey(rowKey);
+                if (rowId == null) {
+                    handleUnknownRowKey(rowKey);
+                }
+                // queued anyway, so that the following rows keep their place
+                rowIds.add(rowId);
+            }
+            queueRows(firstSequence, rowIds, restart);
+        }
+
+        @Override
+        public void prefetch(String rowKey) {
+            GridFileDownloader.this.prefetch(rowKey);
+        }
+
+        @Override
+        public void generate(String rowKey) {
+            Object rowId = resolveRowKey(rowKey);
+            if (rowId == null) {
+                handleUnknownRowKey(rowKey);
+            } else {
+                startGeneration(rowId);
+            }
+        }
+
+        @Override
+        public void signedDownload(String rowKey) {
+            Object rowId = resolveRowKey(rowKey);
+            if (rowId == null) {
+                handleUnknownRowKey(rowKey);
+            } else {
+                getRpcProxy(GridFileDownloaderClientRpc.class).downloadSigned(
+                        rowKey, createSignedDownloadUrl(rowId));
+            }
+        }
+
+        @Override
+        public void cancelGeneration(String jobId) {
+            GenerationJob job = generationJobs.get(jobId);
+            if (job != null) {
+                job.cancel();
             }
         }
 
@@ -105,168 +536,2853 @@ public class GridFileDownloader extends FileDownloader {
         assert grid != null : "The given grid may never be null!";
 
         this.gridStreamResource = gridStreamResource;
+        // only provides the URL, the content is written by
+        // handleConnectorRequest
+        setResource(ARCHIVE_KEY, new StreamResource(null, "download.zip"));
+        setResource(EXPORT_KEY, new StreamResource(null, exportFilename + "."
+                + ExportFormat.CSV.getExtension()));
         registerRpc(rpc);
+        getState().openToken = openToken;
         extend(grid);
         if (downloadPropertyId == null) {
             addDownloadColumn();
         } else {
             setDownloadColumn(downloadPropertyId);
         }
-        grid.setCellStyleGenerator(new Grid.CellStyleGenerator() {
-
-            @Override
-            public String getStyle(Grid.CellReference cellReference) {
-                if (GridFileDownloader.this.downloadPropertyId
-                        .equals(cellReference.getPropertyId())) {
-                    return "gridfiledownloader-downloadcolumn";
-                }
-                return null;
-            }
-        });
     }
 
     @Override
     public boolean handleConnectorRequest(VaadinRequest request,
             VaadinResponse response, String path) throws IOException {
 
+        if (path.matches(ARCHIVE_KEY + "(/.*)?")
+                || path.matches(EXPORT_KEY + "(/.*)?")) {
+            DownloadAdmission sessionAdmission = admit();
+            if (sessionAdmission == null) {
+                handleRejectedDownload(response);
+                return true;
+            }
+            try {
+                if (path.startsWith(ARCHIVE_KEY)) {
+                    return writeArchive(response);
+                }
+                return writeExport(path, response);
+            } finally {
+                release(sessionAdmission);
+            }
+        }
+        String jobId = getJobId(path);
+        if (jobId != null) {
+            return writeGenerated(jobId, response);
+        }
         if (!path.matches("dl(/.*)?")) {
             // Ignore if it isn't for us
             return false;
         }
+        boolean open = path.startsWith(getOpenPathPrefix());
+        if (!open
+                && path.startsWith("dl/" + GridFileDownloaderState.OPEN_PATH
+                        + "/")) {
+            // opened in an earlier UI or session, whose row keys don't apply
+            // and whose request mustn't take a row from the queue
+            return false;
+        }
+        if (open
+                && !path.startsWith(getOpenPathPrefix() + getDataProviderId()
+                        + "/")) {
+            // opened before the container of the Grid was replaced, which
+            // started the row keys over
+            return false;
+        }
 
-        boolean markedProcessed = false;
+        DownloadStatistics statistics = new DownloadStatistics(this,
+                DownloadMetrics.getInstance().downloadStarted());
+        CountingResponse countingResponse = new CountingResponse(response);
+        // opened content is shown in a window of its own, so it isn't
+        // counted by the client-side as a processed download
+        AtomicBoolean markedProcessed = new AtomicBoolean(open);
         try {
-            if (!waitForRPC()) {
-                handleRPCTimeout();
+            // admitted before the row is taken from the queue, so that the
+            // row is left for the retry of a rejected request
+            DownloadAdmission sessionAdmission = admit();
+            if (sessionAdmission == null) {
+                statistics.finish(Outcome.REJECTED, null);
+                handleRejectedDownload(response);
+                return true;
+            }
+            statistics.setAdmission(sessionAdmission);
+            Object rowId = resolveRowId(path);
+            statistics.setRowResolutionTime(System.nanoTime()
+                    - statistics.getStarted());
+            if (rowId == null) {
+                statistics.finish(Outcome.UNRESOLVED, null);
                 return false;
             }
-            getResource().setFilename(gridStreamResource.getFilename());
-
-            VaadinSession session = getSession();
-
-            session.lock();
-            DownloadStream stream;
-
-            try {
-                Resource resource = getFileDownloadResource();
-                if (!(resource instanceof ConnectorResource)) {
-                    return false;
-                }
-                stream = ((ConnectorResource) resource).getStream();
-
-                if (stream.getParameter("Content-Disposition") == null) {
-                    // Content-Disposition: attachment generally forces download
-                    stream.setParameter("Content-Disposition",
-                            "attachment; filename=\"" + stream.getFileName()
-                                    + "\"");
-                }
-
-                // Content-Type to block eager browser plug-ins from hijacking
-                // the file
-                if (isOverrideContentType()) {
-                    stream.setContentType("application/octet-stream;charset=UTF-8");
-                }
-            } finally {
+            statistics.setRowId(rowId);
+            Executor executor = getContentExecutor();
+            if (executor == null) {
+                return writeDownload(request, countingResponse, rowId, open,
+                        markedProcessed, statistics);
+            }
+            boolean handled = executeDownload(executor, request,
+                    countingResponse, rowId, open, markedProcessed,
+                    statistics);
+            if (statistics.getOutcome() == Outcome.REJECTED) {
+                // the retry of the request needs the row again
+                requeueRow(path, rowId);
+            }
+            return handled;
+        } catch (IOException e) {
+            statistics.finish(Outcome.FAILED, e);
+            throw e;
+        } catch (RuntimeException e) {
+            statistics.finish(Outcome.FAILED, e);
+            throw e;
+        } finally {
+            if (!statistics.isPending()) {
+                // a transfer that continues releases the place when it ends
+                release(statistics.takeAdmission());
+            }
+            // ensure the download request always gets marked processed, but
+            // only once if the download task already did it. A rejected
+            // request isn't processed, the client-side counts it when the
+            // page of the rejection is loaded and retries it
+            if (statistics.getOutcome() != Outcome.REJECTED
+                    && !markedProcessed.getAndSet(true)) {
+                VaadinSession session = getSession();
+                session.lock();
                 try {
                     markProcessed();
-                    markedProcessed = true;
                 } finally {
                     session.unlock();
                 }
             }
-            try {
-                stream.writeResponse(request, response);
-            } catch (Exception e) {
-                handleWriteResponseException(e);
+            if (!statistics.isPending()) {
+                statistics.finish(Outcome.FAILED, null);
+                fireDownloadFinished(statistics);
             }
-            return true;
+        }
+    }
+
+    /**
+     * Takes a place for a download from the admission of the session and the
+     * global admission, waiting for them if needed.
+     *
+     * @return the session admission to {@link #release} when the download
+     *         ends, or {@code null} if the download was rejected
+     */
+    private DownloadAdmission admit() throws InterruptedIOException {
+        DownloadAdmission sessionAdmission;
+        VaadinSession session = getSession();
+        session.lock();
+        try {
+            sessionAdmission = DownloadAdmission.getSessionAdmission(session);
         } finally {
-            // ensure the download request always gets marked processed
-            if (!markedProcessed) {
-                markProcessed();
+            session.unlock();
+        }
+        // the narrower session limit first, so that a download waiting for
+        // it doesn't hold a global place
+        if (!sessionAdmission.acquire()) {
+            return null;
+        }
+        boolean admitted = false;
+        try {
+            admitted = DownloadAdmission.getGlobalAdmission().acquire();
+        } finally {
+            if (!admitted) {
+                sessionAdmission.release();
             }
         }
+        return admitted ? sessionAdmission : null;
     }
 
-    protected void handleRPCTimeout() {
-        markProcessed();
-        getLogger().severe(
-                "Download attempt timeout before receiving RPC call about row");
+    private static void release(DownloadAdmission sessionAdmission) {
+        if (sessionAdmission == null) {
+            return;
+        }
+        DownloadAdmission.getGlobalAdmission().release();
+        sessionAdmission.release();
     }
 
     /**
-     * Wait until RPC call has reached the server-side with the rowId.
+     * Tells whether the admission of the download limits the downloads in
+     * progress. The place of such a download must be held until its transfer
+     * ends, which can't be observed when the container writes the body with
+     * sendfile after the request has been handled.
      */
-    protected boolean waitForRPC() {
-        int counter = 0;
-        while (counter < 30) {
-            if (getRowId() != null) {
-                return true;
-            }
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException ignore) {
-            } finally {
-                ++counter;
-            }
-        }
-        return getRowId() != null;
+    private static boolean isAdmissionLimited(DownloadStatistics statistics) {
+        DownloadAdmission sessionAdmission = statistics.getAdmission();
+        return DownloadAdmission.getGlobalAdmission().getMaxConcurrent() > 0
+                || (sessionAdmission != null && sessionAdmission
+                        .getMaxConcurrent() > 0);
     }
 
     /**
-     * Override this method if you want more specific failure handling for write
-     * response exceptions. The main point of this is to keep the exceptions
-     * from e.g. user cancelling the download from showing up in tooltip for the
-     * Grid.
-     *
-     * @param e
+     * Reports the finished download to the metrics and listeners.
      */
-    protected void handleWriteResponseException(Exception e) {
-        e.printStackTrace();
-        for (Type type : Type.values()) {
-            if (type.getStyle().equals(getState().failureNotificationType)) {
-                Notification.show(getState().failureCaption,
-                        getState().failureDescription, type);
-                return;
+    private void fireDownloadFinished(DownloadStatistics statistics) {
+        DownloadMetrics.getInstance().downloadFinished(statistics);
+        for (DownloadListener listener : downloadListeners) {
+            try {
+                listener.downloadFinished(statistics);
+            } catch (RuntimeException e) {
+                getLogger().log(Level.WARNING, "Download listener failed", e);
             }
         }
     }
 
-    protected void markProcessed() {
-        setRowId(null);
-        getState().processing = !getState().processing;
-        markAsDirty();
-    }
-
-    private StreamResource getResource() {
-        return (StreamResource) getFileDownloadResource();
-    }
-
-    protected void setRowId(Object rowId) {
-        this.rowId = rowId;
-    }
-
-    protected Object getRowId() {
-        return rowId;
-    }
-
-    @Override
-    protected GridFileDownloaderState getState() {
-        return (GridFileDownloaderState) super.getState();
+    /**
+     * Writes the rows that are selected in the Grid as a ZIP archive.
+     */
+    private boolean writeArchive(VaadinResponse vaadinResponse)
+            throws IOException {
+        VaadinSession session = getSession();
+        CountingResponse response = new CountingResponse(vaadinResponse);
+        BandwidthLimiter downloadLimiter = new BandwidthLimiter(
+                downloadBandwidthLimit);
+        List<Object> rowIds;
+        String filename;
+        session.lock();
+        try {
+            rowIds = new ArrayList<Object>(grid.getSelectedRows());
+            filename = getArchiveFilename();
+            response.setBandwidthLimiters(getBandwidthLimiters(session,
+                    downloadLimiter));
+        } finally {
+            session.unlock();
+        }
+        response.setContentType("application/zip");
+        response.setCacheTime(0);
+        response.setHeader("Content-Disposition", "attachment; filename=\""
+                + filename + "\"");
+        downloadLimiters.add(downloadLimiter);
+        try {
+            new ZipArchiveWriter(this, rowIds, getContentExecutor(), getUI())
+                    .write(response.getOutputStream());
+        } catch (Exception e) {
+            handleWriteResponseException(e);
+        } finally {
+            downloadLimiters.remove(downloadLimiter);
+        }
+        return true;
     }
 
     /**
-     * DO NOT CALL THIS EXPLICITLY! The behaviour of this extension is not
-     * guaranteed if the target changes from the default.
+     * Writes the rows of the Grid, in their current order and filtering, in
+     * the format given by the file name extension of the path.
      */
-    @Override
-    public void extend(AbstractComponent target) {
-        if (target instanceof Grid) {
-            grid = (Grid) target;
-            super.extend(target);
-        } else {
-            throw new IllegalArgumentException(
-                    "Target must be instance of Grid");
+    private boolean writeExport(String path, VaadinResponse vaadinResponse)
+            throws IOException {
+        VaadinSession session = getSession();
+        CountingResponse response = new CountingResponse(vaadinResponse);
+        BandwidthLimiter downloadLimiter = new BandwidthLimiter(
+                downloadBandwidthLimit);
+        ExportFormat format = ExportFormat.forFilename(path);
+        String filename;
+        Indexed container;
+        List<GridExportWriter.Column> columns;
+        Locale locale;
+        int batchSize;
+        boolean escapeFormulas;
+        session.lock();
+        try {
+            filename = ((StreamResource) getResource(EXPORT_KEY))
+                    .getFilename();
+            container = grid.getContainerDataSource();
+            columns = getExportColumns();
+            locale = grid.getLocale();
+            batchSize = exportBatchSize;
+            escapeFormulas = escapeCsvFormulas;
+            response.setBandwidthLimiters(getBandwidthLimiters(session,
+                    downloadLimiter));
+        } finally {
+            session.unlock();
+        }
+        if (format == null) {
+            format = ExportFormat.forFilename(filename);
+        }
+        if (format == null) {
+            format = ExportFormat.CSV;
+        }
+        response.setContentType(format.getContentType());
+        response.setCacheTime(0);
+        response.setHeader("Content-Disposition", "attachment; filename=\""
+                + filename + "\"");
+        downloadLimiters.add(downloadLimiter);
+        try {
+            new GridExportWriter(session, container, columns, format,
+                    batchSize, getContentExecutor(),
+                    locale != null ? locale : Locale.getDefault(),
+                    escapeFormulas).write(response.getOutputStream());
+        } catch (Exception e) {
+            handleWriteResponseException(e);
+        } finally {
+            downloadLimiters.remove(downloadLimiter);
+        }
+        return true;
+    }
+
+    /**
+     * Starts generating the content of the given row into a temporary file on
+     * the {@link #setGenerationExecutor(Executor) generation executor}. The
+     * browser downloads the file once it is ready. Called with the session
+     * locked when a download cell is clicked and a generation executor is
+     * set.
+     *
+     * @param rowId
+     * @return the job, or {@code null} if it was rejected
+     */
+    public GenerationJob startGeneration(Object rowId) {
+        Executor executor = generationExecutor;
+        if (executor == null) {
+            throw new IllegalStateException(
+                    "A generation executor must be set first");
+        }
+        discardStaleJobs();
+        int active = 0;
+        for (GenerationJob job : generationJobs.values()) {
+            if (!job.isDone()) {
+                ++active;
+            }
+        }
+        if (active >= maxGenerationJobs) {
+            handleRejectedGeneration(rowId);
+            return null;
+        }
+        final GenerationJob job = new GenerationJob(this, rowId);
+        final UI ui = getUI();
+        generationJobs.put(job.getId(), job);
+        GenerationJobState jobState = new GenerationJobState();
+        jobState.id = job.getId();
+        getState().jobs.add(jobState);
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    Map<Class<?>, CurrentInstance> old = CurrentInstance
+                            .setCurrent(ui);
+                    try {
+                        generateContent(job);
+                    } finally {
+                        CurrentInstance.restoreInstances(old);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            generationJobs.remove(job.getId());
+            getState().jobs.remove(jobState);
+            handleRejectedGeneration(rowId);
+            return null;
+        }
+        return job;
+    }
+
+    /**
+     * Returns a signed URL of the given row for the
+     * {@link SignedDownloadServlet}, which stays valid for
+     * {@link #setSignedDownloadValidity(long)}.
+     *
+     * @param rowId
+     * @return the URL, or {@code null} if the row can only be downloaded
+     *         through the session
+     */
+    protected String createSignedDownloadUrl(Object rowId) {
+        if (downloadTokens == null) {
+            return null;
+        }
+        CurrentRow previous = CURRENT_ROW.get();
+        CURRENT_ROW.set(new CurrentRow(this, rowId));
+        try {
+            String identity = ((SignedGridStreamResource) gridStreamResource)
+                    .getDownloadIdentity();
+            if (identity == null) {
+                return null;
+            }
+            String filename = gridStreamResource.getFilename();
+            return signedDownloadUrl
+                    + "/"
+                    + downloadTokens.createToken(identity, filename,
+                            signedDownloadValidity) + "/"
+                    + URLEncoder.encode(filename, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        } finally {
+            if (previous == null) {
+                CURRENT_ROW.remove();
+            } else {
+                CURRENT_ROW.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Writes the content of the job's row into a temporary file.
+     */
+    private void generateContent(GenerationJob job) {
+        CurrentRow previous = CURRENT_ROW.get();
+        CURRENT_ROW.set(new CurrentRow(this, job.getRowId()));
+        job.started();
+        File file = null;
+        Throwable failure = null;
+        try {
+            job.setFilename(gridStreamResource.getFilename());
+            updateJobState(job, false);
+            long contentLength = -1;
+            if (gridStreamResource instanceof WritingGridStreamResource) {
+                contentLength = ((WritingGridStreamResource) gridStreamResource)
+                        .getContentLength();
+            } else if (gridStreamResource instanceof FileGridStreamResource) {
+                contentLength = ((FileGridStreamResource) gridStreamResource)
+                        .getFile().length();
+            }
+            file = File.createTempFile("gridfiledownloader-", ".tmp");
+            OutputStream out = new ProgressOutputStream(new FileOutputStream(
+                    file), job, contentLength);
+            try {
+                if (gridStreamResource instanceof WritingGridStreamResource) {
+                    ((WritingGridStreamResource) gridStreamResource)
+                            .writeContent(out);
+                } else {
+                    InputStream in = gridStreamResource.getStream();
+                    if (in == null) {
+                        throw new FileNotFoundException(
+                                "No content for row " + job.getRowId());
+                    }
+                    try {
+                        byte[] buffer = new byte[Constants.DEFAULT_BUFFER_SIZE];
+                        int read;
+                        while ((read = in.read(buffer)) > 0) {
+                            out.write(buffer, 0, read);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } catch (Exception e) {
+            failure = e;
+        } finally {
+            if (previous == null) {
+                CURRENT_ROW.remove();
+            } else {
+                CURRENT_ROW.set(previous);
+            }
+            if (failure != null && file != null) {
+                file.delete();
+                file = null;
+            }
+            if (job.finished(file, failure) && failure != null) {
+                getLogger().log(Level.WARNING,
+                        "Generating row " + job.getRowId() + " failed",
+                        failure);
+            }
+            updateJobState(job, true);
+            discardStaleJobs();
+        }
+    }
+
+    /**
+     * Discards the finished jobs that have expired, and the oldest ones
+     * beyond the limit, deleting their files.
+     *
+     * @see #setMaxFinishedGenerationJobs(int)
+     * @see #setFinishedGenerationJobTTL(long)
+     */
+    private void discardStaleJobs() {
+        long expired = System.currentTimeMillis() - finishedGenerationJobTTL;
+        List<GenerationJob> finished = new ArrayList<GenerationJob>();
+        for (GenerationJob job : generationJobs.values()) {
+            if (!job.isDone()) {
+                continue;
+            }
+            if (job.getFinishedAt() < expired) {
+                job.cancel();
+            } else {
+                finished.add(job);
+            }
+        }
+        if (finished.size() <= maxFinishedGenerationJobs) {
+            return;
+        }
+        Collections.sort(finished, new Comparator<GenerationJob>() {
+
+            @Override
+            public int compare(GenerationJob job1, GenerationJob job2) {
+                long finishedAt1 = job1.getFinishedAt();
+                long finishedAt2 = job2.getFinishedAt();
+                return finishedAt1 < finishedAt2 ? -1
+                        : finishedAt1 == finishedAt2 ? 0 : 1;
+            }
+        });
+        for (GenerationJob job : finished.subList(0, finished.size()
+                - maxFinishedGenerationJobs)) {
+            job.cancel();
+        }
+    }
+
+    /**
+     * Sends the progress of the job to the browser.
+     */
+    void jobChanged(GenerationJob job) {
+        updateJobState(job, false);
+    }
+
+    /**
+     * Forgets the job and deletes its file.
+     */
+    void jobDiscarded(GenerationJob job) {
+        generationJobs.remove(job.getId());
+        job.deleteFile();
+        updateJobState(job, false);
+    }
+
+    /**
+     * Updates the state of the job with the session locked, and tells the
+     * browser to download the file if requested and the job is ready.
+     */
+    private void updateJobState(final GenerationJob job, final boolean download) {
+        UI ui = getUI();
+        if (ui == null) {
+            return;
+        }
+        try {
+            ui.access(new Runnable() {
+
+                @Override
+                public void run() {
+                    GenerationJobState jobState = null;
+                    for (GenerationJobState candidate : getState(false).jobs) {
+                        if (candidate.id.equals(job.getId())) {
+                            jobState = candidate;
+                        }
+                    }
+                    if (jobState == null) {
+                        return;
+                    }
+                    if (!generationJobs.containsKey(job.getId())) {
+                        getState().jobs.remove(jobState);
+                        return;
+                    }
+                    float progress = job.getProgress();
+                    jobState.filename = job.getFilename();
+                    jobState.progress = progress < 0 ? -1 : Math
+                            .round(progress * 100);
+                    jobState.ready = job.isReady();
+                    jobState.failed = job.isDone() && !job.isReady();
+                    markAsDirty();
+                    if (download && job.isReady()) {
+                        getRpcProxy(GridFileDownloaderClientRpc.class)
+                                .downloadGenerated(job.getId());
+                    }
+                }
+            });
+        } catch (UIDetachedException e) {
+            // nobody to tell
+        }
+    }
+
+    /**
+     * Writes the file of a job that was generated in the background. The job
+     * is forgotten once the file has been sent completely.
+     */
+    private boolean writeGenerated(String jobId, VaadinResponse vaadinResponse)
+            throws IOException {
+        GenerationJob job = generationJobs.get(jobId);
+        File file = job != null && job.isReady() ? job.getFile() : null;
+        if (file == null) {
+            return false;
+        }
+        VaadinSession session = getSession();
+        CountingResponse response = new CountingResponse(vaadinResponse);
+        BandwidthLimiter downloadLimiter = new BandwidthLimiter(
+                downloadBandwidthLimit);
+        String filename = job.getFilename();
+        String contentType;
+        session.lock();
+        try {
+            contentType = isOverrideContentType() ? "application/octet-stream;charset=UTF-8"
+                    : getMIMEType(filename);
+            response.setBandwidthLimiters(getBandwidthLimiters(session,
+                    downloadLimiter));
+        } finally {
+            session.unlock();
+        }
+        response.setContentType(contentType);
+        response.setCacheTime(0);
+        response.setHeader("Content-Disposition", "attachment; filename=\""
+                + filename + "\"");
+        response.setHeader("Content-Length", String.valueOf(file.length()));
+        downloadLimiters.add(downloadLimiter);
+        boolean sent = false;
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                OutputStream out = response.getOutputStream();
+                byte[] buffer = new byte[Constants.DEFAULT_BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+                out.flush();
+                sent = true;
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            handleWriteResponseException(e);
+        } finally {
+            downloadLimiters.remove(downloadLimiter);
+        }
+        if (sent) {
+            jobDiscarded(job);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the job id from a download path of form {@code dl/j/<jobId>}.
+     */
+    private static String getJobId(String path) {
+        String prefix = "dl/" + GridFileDownloaderState.JOB_PATH + "/";
+        if (path.startsWith(prefix) && path.length() > prefix.length()) {
+            String jobId = path.substring(prefix.length());
+            int slash = jobId.indexOf('/');
+            return slash < 0 ? jobId : jobId.substring(0, slash);
+        }
+        return null;
+    }
+
+    /**
+     * Called when a background generation is not started because the
+     * downloader already has {@link #setMaxGenerationJobs(int)} jobs running
+     * or the generation executor doesn't accept any more. Shows the
+     * processing notification by default.
+     *
+     * @param rowId
+     */
+    protected void handleRejectedGeneration(Object rowId) {
+        getLogger().warning(
+                "Background generation of row " + rowId + " rejected");
+        for (Type type : Type.values()) {
+            if (type.getStyle()
+                    .equals(getState().processingNotificationType)) {
+                Notification.show(getState().processingCaption,
+                        getState().processingDescription, type);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the visible columns of the Grid, except for the download and
+     * open columns added by this extension.
+     */
+    private List<GridExportWriter.Column> getExportColumns() {
+        List<GridExportWriter.Column> columns = new ArrayList<GridExportWriter.Column>();
+        for (Grid.Column column : grid.getColumns()) {
+            Object propertyId = column.getPropertyId();
+            if (column.isHidden()
+                    || (propertyId == FontAwesome.DOWNLOAD && propertyId
+                            .equals(downloadPropertyId))
+                    || (propertyId == FontAwesome.EYE && propertyId
+                            .equals(openPropertyId))) {
+                continue;
+            }
+            columns.add(new GridExportWriter.Column(propertyId, column
+                    .getHeaderCaption(), column.getConverter()));
+        }
+        return columns;
+    }
+
+    /**
+     * Resolves the file name and opens the content of the given row on the
+     * calling thread.
+     */
+    ZipArchiveWriter.Entry openArchiveEntry(Object rowId) {
+        CurrentRow previous = CURRENT_ROW.get();
+        CURRENT_ROW.set(new CurrentRow(this, rowId));
+        try {
+            return new ZipArchiveWriter.Entry(
+                    gridStreamResource.getFilename(),
+                    gridStreamResource.getStream());
+        } finally {
+            if (previous == null) {
+                CURRENT_ROW.remove();
+            } else {
+                CURRENT_ROW.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Starts reading the content of the row with the given key into the
+     * content cache in the background, so that a following download doesn't
+     * need to wait for the source. Called with the session locked when the
+     * client-side hints that the row is likely to be downloaded.
+     *
+     * @param rowKey
+     */
+    protected void prefetch(String rowKey) {
+        Executor executor = getPrefetchExecutor();
+        final ContentCache cache = getContentCache();
+        if (executor == null || cache == null
+                || gridStreamResource instanceof FileGridStreamResource
+                || gridStreamResource instanceof WritingGridStreamResource) {
+            // files and produced content are not cached
+            return;
+        }
+        final Object rowId = resolveRowKey(rowKey);
+        if (rowId == null || !prefetching.add(rowId)) {
+            return;
+        }
+        final UI ui = getUI();
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    Map<Class<?>, CurrentInstance> old = CurrentInstance
+                            .setCurrent(ui);
+                    try {
+                        prefetchContent(rowId, cache);
+                    } finally {
+                        prefetching.remove(rowId);
+                        CurrentInstance.restoreInstances(old);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // only a hint, dropped when the pool is busy
+            prefetching.remove(rowId);
+        }
+    }
+
+    private void prefetchContent(Object rowId, ContentCache cache) {
+        CurrentRow previous = CURRENT_ROW.get();
+        CURRENT_ROW.set(new CurrentRow(this, rowId));
+        try {
+            Object key = getContentKey(rowId);
+            if (cache.contains(key)) {
+                return;
+            }
+            InputStream in = cache.capture(key,
+                    gridStreamResource.getStream(), prefetchTTL);
+            if (in == null) {
+                return;
+            }
+            try {
+                // the cache stores the content once the end is reached, and
+                // content that is too large for it is not read any further
+                byte[] buffer = new byte[Constants.DEFAULT_BUFFER_SIZE];
+                while (ContentCache.isCapturing(in) && in.read(buffer) >= 0) {
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            getLogger().log(Level.FINE, "Prefetching row " + rowId + " failed",
+                    e);
+        } catch (RuntimeException e) {
+            getLogger().log(Level.FINE, "Prefetching row " + rowId + " failed",
+                    e);
+        } finally {
+            if (previous == null) {
+                CURRENT_ROW.remove();
+            } else {
+                CURRENT_ROW.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Returns the content executor of the downloader whose download is
+     * processed on the current thread.
+     *
+     * @return the executor, or {@code null} if there is none
+     */
+    static Executor getCurrentContentExecutor() {
+        CurrentRow current = CURRENT_ROW.get();
+        return current == null ? null : current.downloader
+                .getContentExecutor();
+    }
+
+    /**
+     * Tells whether the current thread runs a task of the content executor.
+     * Such a thread must not hand work over to the executor and wait for it,
+     * since the work may be queued behind the very tasks that wait for it.
+     */
+    static boolean isContentTask() {
+        return Boolean.TRUE.equals(CONTENT_TASK.get());
+    }
+
+    /**
+     * Marks the current thread as running a task of the content executor
+     * until {@link #endContentTask(boolean)} is called.
+     *
+     * @return the previous mark, to be passed to
+     *         {@link #endContentTask(boolean)}
+     */
+    static boolean startContentTask() {
+        boolean previous = isContentTask();
+        CONTENT_TASK.set(Boolean.TRUE);
+        return previous;
+    }
+
+    static void endContentTask(boolean previous) {
+        if (!previous) {
+            CONTENT_TASK.remove();
+        }
+    }
+
+    /**
+     * Wraps the given task so that it runs with the row and the current
+     * instances, e.g. the UI, of the calling thread.
+     */
+    static Runnable withCurrentRow(final Runnable task) {
+        final CurrentRow row = CURRENT_ROW.get();
+        final Map<Class<?>, CurrentInstance> instances = CurrentInstance
+                .getInstances(false);
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                CurrentInstance.restoreInstances(instances);
+                if (row != null) {
+                    CURRENT_ROW.set(row);
+                }
+                try {
+                    task.run();
+                } finally {
+                    CURRENT_ROW.remove();
+                    CurrentInstance.clearAll();
+                }
+            }
+        };
+    }
+
+    /**
+     * Resolves the row of the download request either from the row key in
+     * the path or by taking the row that the RPC calls have queued for the
+     * sequence number in the path, waiting for the call if it hasn't arrived
+     * yet. A request without a sequence number takes the first queued row.
+     *
+     * @param path
+     * @return the row id, or {@code null} if the row couldn't be resolved
+     */
+    private Object resolveRowId(String path) {
+        String rowKey = getRowKey(path);
+        if (rowKey != null) {
+            Object rowId = resolveRowKey(rowKey);
+            if (rowId == null) {
+                handleUnknownRowKey(rowKey);
+            } else {
+                setRowId(rowId);
+            }
+            return rowId;
+        }
+        Integer sequence;
+        try {
+            sequence = getSequence(path);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        boolean queued;
+        Object rowId = null;
+        DownloadMetrics.getInstance().waitingForRow(true);
+        try {
+            // several requests may wait for the queue at the same time, so
+            // the row is taken without releasing the monitor after the wait
+            synchronized (rowIdLock) {
+                queued = waitForRPC(sequence);
+                if (queued) {
+                    rowId = takeQueuedRow(sequence).rowId;
+                }
+            }
+        } finally {
+            DownloadMetrics.getInstance().waitingForRow(false);
+        }
+        if (!queued) {
+            handleRPCTimeout();
+            return null;
+        }
+        if (rowId != null) {
+            setRowId(rowId);
+        }
+        return rowId;
+    }
+
+    /**
+     * Queues the rows of the next download requests that don't carry the row
+     * key in the URL. The client-side numbers the clicks and puts the number
+     * in the URL of each request, which takes the row queued with its number.
+     * A late RPC call or a request that never arrives therefore can't make a
+     * request take the row of another click. The client-side sends the rows
+     * of a whole batch of downloads in a single RPC call and then opens one
+     * request per row.
+     *
+     * @param firstSequence
+     *            sequence number of the first row, the following rows have
+     *            the following numbers
+     * @param rowIds
+     *            the rows in the order of the clicks, {@code null} for a row
+     *            that couldn't be resolved
+     * @param restart
+     *            {@code true} to discard rows left in the queue first, e.g.
+     *            by requests that never reached the server
+     */
+    protected void queueRows(int firstSequence, List<?> rowIds,
+            boolean restart) {
+        List<QueuedRow> rows = new ArrayList<QueuedRow>(rowIds.size());
+        for (Object rowId : rowIds) {
+            rows.add(new QueuedRow(firstSequence++, rowId));
+        }
+        enqueue(rows, restart);
+    }
+
+    /**
+     * Queues the rows of the next download requests that carry neither the
+     * row key nor a sequence number in the URL. Every such request takes the
+     * first row of the queue.
+     *
+     * @param rowIds
+     *            the rows in the order of the requests, {@code null} for a row
+     *            that couldn't be resolved
+     * @param restart
+     *            {@code true} to discard rows left in the queue first
+     * @see #queueRows(int, List, boolean)
+     */
+    protected void queueRows(List<?> rowIds, boolean restart) {
+        List<QueuedRow> rows = new ArrayList<QueuedRow>(rowIds.size());
+        for (Object rowId : rowIds) {
+            rows.add(new QueuedRow(null, rowId));
+        }
+        enqueue(rows, restart);
+    }
+
+    private void enqueue(Collection<QueuedRow> rows, boolean restart) {
+        synchronized (rowIdLock) {
+            if (restart) {
+                queuedRows.clear();
+            }
+            queuedRows.addAll(rows);
+            if (!queuedRows.isEmpty()) {
+                rowIdLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Puts the row of a request back at the head of the queue, e.g. when the
+     * request is rejected after it has taken the row, so that the retry of
+     * the request finds it.
+     */
+    private void requeueRow(String path, Object rowId) {
+        if (getRowKey(path) != null) {
+            // not taken from the queue
+            return;
+        }
+        synchronized (rowIdLock) {
+            queuedRows.addFirst(new QueuedRow(getSequence(path), rowId));
+            rowIdLock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the sequence number of the click in the download path.
+     *
+     * @return the sequence number, or {@code null} if the path has none
+     * @throws NumberFormatException
+     *             if the sequence number is malformed
+     */
+    private static Integer getSequence(String path) {
+        String prefix = "dl/" + GridFileDownloaderState.SEQUENCE_PATH + "/";
+        if (!path.startsWith(prefix)) {
+            return null;
+        }
+        return Integer.valueOf(path.substring(prefix.length()));
+    }
+
+    /**
+     * Returns the first queued row that matches the sequence number, with
+     * the monitor of the queue held.
+     *
+     * @param sequence
+     *            sequence number of the request, or {@code null} to match
+     *            any row
+     * @return the row, or {@code null} if none is queued
+     */
+    private QueuedRow findQueuedRow(Integer sequence) {
+        for (QueuedRow row : queuedRows) {
+            if (row.matches(sequence)) {
+                return row;
+            }
+        }
+        return null;
+    }
+
+    private QueuedRow takeQueuedRow(Integer sequence) {
+        QueuedRow row = findQueuedRow(sequence);
+        queuedRows.remove(row);
+        return row;
+    }
+
+    /**
+     * Runs {@link #writeDownload} on the given executor and waits for it to
+     * finish. The current UI and session are made available to the executing
+     * thread. If the request thread is interrupted, the task is only
+     * abandoned if it hasn't started yet, as the response must not be
+     * recycled while the task writes to it.
+     */
+    private boolean executeDownload(Executor executor,
+            final VaadinRequest request, final CountingResponse response,
+            final Object rowId, final boolean open,
+            final AtomicBoolean markedProcessed,
+            final DownloadStatistics statistics) throws IOException {
+        final UI ui = getUI();
+        final long queued = System.nanoTime();
+        final AtomicBoolean dequeued = new AtomicBoolean(false);
+        FutureTask<Boolean> task = new FutureTask<Boolean>(
+                new Callable<Boolean>() {
+
+                    @Override
+                    public Boolean call() throws IOException {
+                        if (!dequeued.compareAndSet(false, true)) {
+                            // the request gave up before the task started
+                            return true;
+                        }
+                        DownloadMetrics.getInstance().queued(false);
+                        statistics.setQueueTime(System.nanoTime() - queued);
+                        Map<Class<?>, CurrentInstance> old = CurrentInstance
+                                .setCurrent(ui);
+                        boolean contentTask = startContentTask();
+                        try {
+                            return writeDownload(request, response, rowId,
+                                    open, markedProcessed, statistics);
+                        } finally {
+                            endContentTask(contentTask);
+                            CurrentInstance.restoreInstances(old);
+                        }
+                    }
+                });
+        DownloadMetrics.getInstance().queued(true);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            if (dequeued.compareAndSet(false, true)) {
+                DownloadMetrics.getInstance().queued(false);
+            }
+            statistics.finish(Outcome.REJECTED, e);
+            handleRejectedDownload(response);
+            return true;
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    if (dequeued.compareAndSet(false, true)) {
+                        // never started, the caller marks it processed
+                        DownloadMetrics.getInstance().queued(false);
+                        task.cancel(false);
+                        return true;
+                    }
+                    // already writing, wait for the task to finish
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Generates the content for the given row and writes it to the response.
+     *
+     * @param open
+     *            {@code true} if the content is opened from the open column
+     *            rather than downloaded
+     */
+    private boolean writeDownload(VaadinRequest request,
+            CountingResponse response, Object rowId, boolean open,
+            AtomicBoolean markedProcessed, DownloadStatistics statistics)
+            throws IOException {
+        CurrentRow previous = CURRENT_ROW.get();
+        CURRENT_ROW.set(new CurrentRow(this, rowId));
+        BandwidthLimiter downloadLimiter = new BandwidthLimiter(
+                downloadBandwidthLimit);
+        downloadLimiters.add(downloadLimiter);
+        try {
+            // the source is opened without the session lock so that slow
+            // sources don't block the other requests of the session
+            long started = System.nanoTime();
+            DownloadStream stream;
+            long contentLength = -1;
+            List<ByteRange> ranges = null;
+            String encoding = null;
+            Object compressedKey = null;
+            byte[] compressed = null;
+            boolean notModified = false;
+            try {
+                String filename = gridStreamResource.getFilename();
+                String mimeType = getMIMEType(filename);
+                notModified = isNotModified(request);
+                if (!notModified
+                        && gridStreamResource instanceof SeekableGridStreamResource) {
+                    contentLength = ((SeekableGridStreamResource) gridStreamResource)
+                            .getContentLength();
+                    ranges = getRequestedRanges(request, contentLength);
+                } else if (!notModified
+                        && gridStreamResource instanceof WritingGridStreamResource) {
+                    contentLength = ((WritingGridStreamResource) gridStreamResource)
+                            .getContentLength();
+                }
+                if (ranges == null && !notModified) {
+                    encoding = getContentEncoding(request, mimeType);
+                }
+                if (encoding != null) {
+                    compressedKey = getCompressedVariantKey(rowId, encoding);
+                    CompressedContentCache cache = getCompressedContentCache();
+                    if (compressedKey != null && cache != null) {
+                        compressed = cache.get(compressedKey);
+                    }
+                }
+                if (ranges == null
+                        && !notModified
+                        && compressed == null
+                        && !(gridStreamResource instanceof WritingGridStreamResource)
+                        && (encoding != null || !(gridStreamResource instanceof FileGridStreamResource))) {
+                    stream = openStream(rowId, filename, mimeType,
+                            encoding == null);
+                } else {
+                    // files, ranges, cached variants and produced content are
+                    // written separately
+                    stream = new DownloadStream(null, mimeType, filename);
+                }
+                stream.setCacheTime(getResource().getCacheTime());
+                setContentHeaders(stream, contentLength, ranges == null,
+                        encoding);
+                boolean inline = open && isInlineContentType(mimeType);
+                if (open
+                        && gridStreamResource instanceof VersionedGridStreamResource) {
+                    // the URL is unique to this extension, container and row,
+                    // so the browser may keep the content and revalidates it
+                    // with the validators when it expires
+                    stream.setCacheTime(openCacheTime);
+                    stream.setParameter("Cache-Control", "private, max-age="
+                            + openCacheTime / 1000);
+                } else if (open) {
+                    // without validators a changed content couldn't be told
+                    // apart from the copy of the browser
+                    stream.setCacheTime(0);
+                }
+                if (inline) {
+                    stream.setParameter("Content-Disposition", "inline; "
+                            + DownloadStream.getContentDispositionFilename(stream
+                                    .getFileName()));
+                    stream.setParameter("X-Content-Type-Options", "nosniff");
+                }
+
+                if (stream.getParameter("Content-Disposition") == null) {
+                    // Content-Disposition: attachment generally forces download
+                    stream.setParameter("Content-Disposition",
+                            "attachment; filename=\"" + stream.getFileName()
+                                    + "\"");
+                }
+
+                // Content-Type to block eager browser plug-ins from hijacking
+                // the file
+                if (isOverrideContentType() && !inline) {
+                    stream.setContentType("application/octet-stream;charset=UTF-8");
+                }
+            } finally {
+                // only the bookkeeping needs the lock
+                VaadinSession session = getSession();
+                long lockRequested = System.nanoTime();
+                statistics.setOpenTime(lockRequested - started);
+                session.lock();
+                statistics.setLockWaitTime(System.nanoTime() - lockRequested);
+                try {
+                    if (!markedProcessed.getAndSet(true)) {
+                        markProcessed();
+                    }
+                    response.setBandwidthLimiters(getBandwidthLimiters(
+                            session, downloadLimiter));
+                } finally {
+                    session.unlock();
+                }
+            }
+            long opened = System.nanoTime();
+            // with a limited admission the transfer must end before the
+            // request has been handled, so that its place is held until then
+            boolean sendfile = Boolean.TRUE.equals(request
+                    .getAttribute(SENDFILE_SUPPORT))
+                    && !isAdmissionLimited(statistics);
+            try {
+                if (notModified) {
+                    setResponseHeaders(response, stream);
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                } else if (encoding != null) {
+                    writeCompressed(response, stream, compressed,
+                            compressedKey);
+                } else if (ranges == null
+                        && gridStreamResource instanceof WritingGridStreamResource) {
+                    writeProduced(response, stream);
+                } else if (ranges == null && isAsyncWrites()
+                        && !response.isBandwidthLimited()
+                        && AsyncWriteSupport.isSupported(request) && !sendfile) {
+                    // reported when the transfer ends
+                    writeAsync(request, response, stream, statistics, opened);
+                    return true;
+                } else if (gridStreamResource instanceof FileGridStreamResource
+                        && (ranges == null || ranges.size() == 1)) {
+                    writeFile(request, response, stream,
+                            ((FileGridStreamResource) gridStreamResource)
+                                    .getFile(), ranges, contentLength,
+                            sendfile);
+                } else if (ranges == null) {
+                    stream.writeResponse(request, response);
+                } else {
+                    writeRanges(response, stream, ranges, contentLength);
+                }
+                statistics.setTransfer(response, opened);
+                statistics.finish(Outcome.COMPLETED, null);
+            } catch (Exception e) {
+                statistics.setTransfer(response, opened);
+                statistics.finish(response.isOutputFailed() ? Outcome.ABORTED
+                        : Outcome.FAILED, e);
+                handleWriteResponseException(e);
+            }
+            return true;
+        } finally {
+            downloadLimiters.remove(downloadLimiter);
+            if (previous == null) {
+                CURRENT_ROW.remove();
+            } else {
+                CURRENT_ROW.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Returns the limiters of a download, in the order bandwidth is acquired
+     * from them. The session must be locked.
+     */
+    private static List<BandwidthLimiter> getBandwidthLimiters(
+            VaadinSession session, BandwidthLimiter downloadLimiter) {
+        return Arrays.asList(downloadLimiter,
+                BandwidthLimiter.getSessionLimiter(session),
+                BandwidthLimiter.getGlobalLimiter());
+    }
+
+    /**
+     * Adds the range, encoding and validator headers of the current row to
+     * the stream.
+     *
+     * @param stream
+     * @param contentLength
+     *            length of the content, or -1 if not known
+     * @param fullContent
+     *            {@code true} if the whole content is sent
+     * @param encoding
+     *            content encoding of the response, or {@code null} if the
+     *            content is sent as is
+     */
+    private void setContentHeaders(DownloadStream stream, long contentLength,
+            boolean fullContent, String encoding) {
+        if (encoding != null) {
+            // ranges and length refer to the encoded content, which isn't
+            // known beforehand
+            stream.setParameter("Content-Encoding", encoding);
+            stream.setParameter("Vary", "Accept-Encoding");
+        } else if (contentLength >= 0) {
+            if (gridStreamResource instanceof SeekableGridStreamResource) {
+                stream.setParameter("Accept-Ranges", "bytes");
+            }
+            if (fullContent) {
+                stream.setParameter("Content-Length",
+                        String.valueOf(contentLength));
+            }
+        }
+        if (gridStreamResource instanceof VersionedGridStreamResource) {
+            VersionedGridStreamResource versioned = (VersionedGridStreamResource) gridStreamResource;
+            String etag = versioned.getETag();
+            if (etag != null) {
+                // each encoding is a different representation
+                stream.setParameter("ETag", "\"" + etag
+                        + (encoding == null ? "" : "-" + encoding) + "\"");
+            }
+            long lastModified = versioned.getLastModified();
+            if (lastModified >= 0) {
+                stream.setParameter("Last-Modified",
+                        formatHttpDate(lastModified));
+            }
+        }
+    }
+
+    /**
+     * Opens the content of the current row, from the content cache if
+     * possible. Content that is read from the resource is recorded in the
+     * cache.
+     *
+     * @param rowId
+     * @param filename
+     * @param mimeType
+     * @param setLength
+     *            {@code true} to set the {@code Content-Length} of cached
+     *            content
+     */
+    private DownloadStream openStream(Object rowId, String filename,
+            String mimeType, boolean setLength) {
+        ContentCache cache = getContentCache();
+        if (cache == null || gridStreamResource instanceof FileGridStreamResource) {
+            return createStream(openSharedStream(), filename, mimeType);
+        }
+        Object key = getContentKey(rowId);
+        ContentCache.Entry entry = cache.get(key);
+        if (entry != null) {
+            InputStream cached = entry.openStream();
+            if (cached != null) {
+                DownloadStream stream = createStream(cached, filename,
+                        mimeType);
+                if (setLength) {
+                    stream.setParameter("Content-Length",
+                            String.valueOf(entry.getLength()));
+                }
+                return stream;
+            }
+        }
+        return createStream(cache.capture(key, openSharedStream()), filename,
+                mimeType);
+    }
+
+    /**
+     * Opens the content of the current row, sharing it with the concurrent
+     * downloads of the same content if the resource is a
+     * {@link SharedGridStreamResource}.
+     */
+    private InputStream openSharedStream() {
+        Object sharedKey = null;
+        if (gridStreamResource instanceof SharedGridStreamResource) {
+            sharedKey = ((SharedGridStreamResource) gridStreamResource)
+                    .getSharedKey();
+        }
+        if (sharedKey == null) {
+            return gridStreamResource.getStream();
+        }
+        // a task of the content executor produces the content itself rather
+        // than wait for another task that may be queued behind it
+        Executor executor = isContentTask() ? null : getContentExecutor();
+        return SharedContent.open(sharedKey, new SharedContent.Source() {
+
+            @Override
+            public InputStream open() {
+                return gridStreamResource.getStream();
+            }
+        }, executor);
+    }
+
+    private DownloadStream createStream(InputStream in, String filename,
+            String mimeType) {
+        DownloadStream stream = new DownloadStream(in, mimeType, filename);
+        stream.setBufferSize(getResource().getBufferSize());
+        return stream;
+    }
+
+    /**
+     * Returns the content type of a download with the given file name. By
+     * default the type is resolved from the file extension.
+     *
+     * @param filename
+     * @return the content type
+     */
+    protected String getMIMEType(String filename) {
+        return FileTypeResolver.getMIMEType(filename);
+    }
+
+    /**
+     * Returns whether content of the given type opened from the open column
+     * is shown in the browser. Content of other types is downloaded as a
+     * file. By default images, video, audio, PDF and plain text are shown,
+     * but not types like HTML or SVG that could run scripts in the
+     * application's origin.
+     *
+     * @param mimeType
+     * @return {@code true} to send the content inline
+     */
+    protected boolean isInlineContentType(String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        int semicolon = mimeType.indexOf(';');
+        String type = (semicolon < 0 ? mimeType : mimeType.substring(0,
+                semicolon)).trim().toLowerCase(Locale.ENGLISH);
+        return (type.startsWith("image/") && !type.startsWith("image/svg"))
+                || type.startsWith("video/") || type.startsWith("audio/")
+                || "application/pdf".equals(type) || "text/plain".equals(type);
+    }
+
+    private Object getContentKey(Object rowId) {
+        if (!(gridStreamResource instanceof VersionedGridStreamResource)) {
+            return Arrays.asList(contentCacheScope, rowId);
+        }
+        VersionedGridStreamResource versioned = (VersionedGridStreamResource) gridStreamResource;
+        return Arrays.asList(contentCacheScope, rowId, versioned.getETag(),
+                Long.valueOf(versioned.getLastModified()));
+    }
+
+    /**
+     * Checks the {@code If-None-Match} and {@code If-Modified-Since}
+     * preconditions against the validators of the current row.
+     *
+     * @return {@code true} if the browser already has the current content and
+     *         a {@code 304 Not Modified} response should be sent
+     */
+    private boolean isNotModified(VaadinRequest request) {
+        if (!(gridStreamResource instanceof VersionedGridStreamResource)
+                || !"GET".equals(request.getMethod())) {
+            return false;
+        }
+        VersionedGridStreamResource versioned = (VersionedGridStreamResource) gridStreamResource;
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            String etag = versioned.getETag();
+            if (etag == null) {
+                return false;
+            }
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                // the compressed variants share the validator of the content
+                if ("*".equals(tag) || tag.equals("\"" + etag + "\"")
+                        || tag.startsWith("\"" + etag + "-")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long lastModified = versioned.getLastModified();
+        if (lastModified < 0) {
+            return false;
+        }
+        try {
+            long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            return ifModifiedSince >= 0
+                    && lastModified / 1000 * 1000 <= ifModifiedSince;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the content encoding to use for the response, based on the
+     * {@code Accept-Encoding} header of the request and
+     * {@link #setCompressedContentTypes(String...)}.
+     *
+     * @param request
+     * @param mimeType
+     *            the actual content type of the row before any override
+     * @return the encoding, or {@code null} if the content should not be
+     *         compressed
+     */
+    protected String getContentEncoding(VaadinRequest request, String mimeType) {
+        if (compressedContentTypes.isEmpty() || mimeType == null
+                || !acceptsGzip(request.getHeader("Accept-Encoding"))) {
+            return null;
+        }
+        String type = mimeType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+        for (String compressed : compressedContentTypes) {
+            if (compressed.equals(type)
+                    || (compressed.endsWith("/*") && type.startsWith(compressed
+                            .substring(0, compressed.length() - 1)))) {
+                return "gzip";
+            }
+        }
+        return null;
+    }
+
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        double gzip = -1;
+        double any = -1;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase(Locale.ROOT);
+            double quality = 1;
+            for (int i = 1; i < params.length; ++i) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if ("gzip".equals(coding) || "x-gzip".equals(coding)) {
+                gzip = quality;
+            } else if ("*".equals(coding)) {
+                any = quality;
+            }
+        }
+        return gzip > 0 || (gzip < 0 && any > 0);
+    }
+
+    /**
+     * Returns the key of the compressed variant of the current row in the
+     * cache, or {@code null} if the row has no version that would tell when
+     * the cached variant is out of date.
+     */
+    private Object getCompressedVariantKey(Object rowId, String encoding) {
+        if (!(gridStreamResource instanceof VersionedGridStreamResource)) {
+            return null;
+        }
+        VersionedGridStreamResource versioned = (VersionedGridStreamResource) gridStreamResource;
+        Object version = versioned.getETag();
+        if (version == null) {
+            long lastModified = versioned.getLastModified();
+            if (lastModified < 0) {
+                return null;
+            }
+            version = Long.valueOf(lastModified);
+        }
+        return Arrays.asList(rowId, version, encoding);
+    }
+
+    /**
+     * Writes the gzip compressed content, either from the cached variant or
+     * by compressing the stream while it is sent.
+     */
+    private void writeCompressed(VaadinResponse response,
+            DownloadStream stream, byte[] compressed, Object compressedKey)
+            throws IOException {
+        setResponseHeaders(response, stream);
+        response.setContentType(stream.getContentType());
+        if (compressed != null) {
+            response.setContentLength(compressed.length);
+            OutputStream out = response.getOutputStream();
+            try {
+                out.write(compressed);
+            } finally {
+                out.close();
+            }
+            return;
+        }
+        InputStream in = stream.getStream();
+        if (in == null
+                && !(gridStreamResource instanceof WritingGridStreamResource)) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        OutputStream out = null;
+        try {
+            out = response.getOutputStream();
+            CompressedContentCache cache = getCompressedContentCache();
+            CompressedContentCache.CapturingOutputStream capture = null;
+            if (cache != null && compressedKey != null) {
+                capture = cache.capture(out, compressedKey);
+            }
+            GZIPOutputStream gzip = new GZIPOutputStream(
+                    capture != null ? capture : out,
+                    Constants.DEFAULT_BUFFER_SIZE);
+            if (in == null) {
+                ((WritingGridStreamResource) gridStreamResource)
+                        .writeContent(new UnclosableOutputStream(gzip));
+            } else {
+                byte[] buffer = new byte[Constants.DEFAULT_BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    gzip.write(buffer, 0, read);
+                }
+            }
+            gzip.finish();
+            if (capture != null) {
+                capture.commit();
+            }
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the byte ranges the request asks for, if the current row can be
+     * served partially.
+     *
+     * @param request
+     * @param contentLength
+     * @return the ranges, an empty list if none of them can be satisfied, or
+     *         {@code null} if the full content should be sent
+     */
+    private List<ByteRange> getRequestedRanges(VaadinRequest request,
+            long contentLength) {
+        String range = request.getHeader("Range");
+        if (range == null || contentLength < 0
+                || !"GET".equals(request.getMethod())
+                || !isIfRangeSatisfied(request)) {
+            return null;
+        }
+        return ByteRange.parse(range, contentLength);
+    }
+
+    /**
+     * Checks the {@code If-Range} precondition against the validators of the
+     * current row. Only strong validators can satisfy it.
+     */
+    private boolean isIfRangeSatisfied(VaadinRequest request) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (!(gridStreamResource instanceof VersionedGridStreamResource)) {
+            return false;
+        }
+        VersionedGridStreamResource versioned = (VersionedGridStreamResource) gridStreamResource;
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            String etag = versioned.getETag();
+            return etag != null && ifRange.equals("\"" + etag + "\"");
+        }
+        long lastModified = versioned.getLastModified();
+        if (lastModified < 0) {
+            return false;
+        }
+        try {
+            // HTTP dates have a precision of one second
+            return request.getDateHeader("If-Range") == lastModified / 1000 * 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes a {@code 206 Partial Content} response with the given ranges, or
+     * {@code 416 Requested Range Not Satisfiable} if there are none.
+     */
+    private void writeRanges(VaadinResponse response, DownloadStream stream,
+            List<ByteRange> ranges, long contentLength) throws IOException {
+        setResponseHeaders(response, stream);
+        if (ranges.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader("Content-Range", "bytes */" + contentLength);
+            return;
+        }
+        SeekableGridStreamResource source = (SeekableGridStreamResource) gridStreamResource;
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            response.setContentType(stream.getContentType());
+            response.setHeader("Content-Range",
+                    range.toContentRange(contentLength));
+            response.setHeader("Content-Length",
+                    String.valueOf(range.getLength()));
+            OutputStream out = response.getOutputStream();
+            try {
+                copyRange(source, range, out);
+            } finally {
+                out.close();
+            }
+            return;
+        }
+        String boundary = "GridFileDownloader-"
+                + Long.toHexString(System.nanoTime());
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        OutputStream out = response.getOutputStream();
+        try {
+            for (ByteRange range : ranges) {
+                out.write(("\r\n--" + boundary + "\r\nContent-Type: "
+                        + stream.getContentType() + "\r\nContent-Range: "
+                        + range.toContentRange(contentLength) + "\r\n\r\n")
+                        .getBytes("ISO-8859-1"));
+                copyRange(source, range, out);
+            }
+            out.write(("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the whole file or a single range of it. Uses the sendfile support
+     * of the servlet container when allowed, otherwise copies the bytes to
+     * the response through a buffer. The Servlet API doesn't expose a channel
+     * of the response, so a transfer from the file channel would be copied
+     * through buffers as well.
+     *
+     * @param sendfile
+     *            {@code true} if the container supports sendfile and the
+     *            transfer may continue after the request has been handled
+     */
+    private void writeFile(VaadinRequest request, VaadinResponse response,
+            DownloadStream stream, File file, List<ByteRange> ranges,
+            long contentLength, boolean sendfile) throws IOException {
+        if (contentLength < 0) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                    "File not found");
+            return;
+        }
+        setResponseHeaders(response, stream);
+        response.setContentType(stream.getContentType());
+        long start = 0;
+        long length = contentLength;
+        if (ranges != null) {
+            ByteRange range = ranges.get(0);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range",
+                    range.toContentRange(contentLength));
+            response.setHeader("Content-Length",
+                    String.valueOf(range.getLength()));
+            start = range.start;
+            length = range.getLength();
+        }
+        boolean limited = response instanceof CountingResponse
+                && ((CountingResponse) response).isBandwidthLimited();
+        if (!limited && sendfile) {
+            // the container writes the body after the request has been handled
+            request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+            request.setAttribute(SENDFILE_START, Long.valueOf(start));
+            request.setAttribute(SENDFILE_END, Long.valueOf(start + length));
+            if (response instanceof CountingResponse) {
+                ((CountingResponse) response).addBytesWritten(length);
+            }
+            return;
+        }
+        FileChannel channel = new FileInputStream(file).getChannel();
+        OutputStream out = null;
+        try {
+            channel.position(start);
+            InputStream in = Channels.newInputStream(channel);
+            out = response.getOutputStream();
+            byte[] buffer = new byte[Constants.DEFAULT_BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0,
+                        (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("File " + file
+                            + " ended before position " + (start + length));
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            channel.close();
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the full content of a {@link WritingGridStreamResource} as it is
+     * produced. Without a known length the container sends it chunked.
+     */
+    private void writeProduced(VaadinResponse response, DownloadStream stream)
+            throws IOException {
+        setResponseHeaders(response, stream);
+        response.setContentType(stream.getContentType());
+        OutputStream out = response.getOutputStream();
+        try {
+            ((WritingGridStreamResource) gridStreamResource)
+                    .writeContent(new UnclosableOutputStream(out));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Starts writing the full content with non-blocking I/O. The request
+     * thread is released right away and the statistics are finished when the
+     * transfer ends.
+     */
+    private void writeAsync(VaadinRequest request,
+            final CountingResponse response, DownloadStream stream,
+            final DownloadStatistics statistics, final long opened)
+            throws IOException {
+        ReadableByteChannel source;
+        if (gridStreamResource instanceof FileGridStreamResource) {
+            try {
+                source = new FileInputStream(
+                        ((FileGridStreamResource) gridStreamResource)
+                                .getFile()).getChannel();
+            } catch (FileNotFoundException e) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                        "File not found");
+                statistics.finish(Outcome.FAILED, e);
+                return;
+            }
+        } else if (stream.getStream() != null) {
+            source = Channels.newChannel(stream.getStream());
+        } else {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            statistics.finish(Outcome.FAILED, null);
+            return;
+        }
+        setResponseHeaders(response, stream);
+        response.setContentType(stream.getContentType());
+        statistics.setPending(true);
+        try {
+            AsyncDownloadWriter.start(request, response, source,
+                    new AsyncDownloadWriter.Callback() {
+
+                        @Override
+                        public void finished(Throwable failure,
+                                boolean outputFailed) {
+                            release(statistics.takeAdmission());
+                            statistics.setTransfer(response, opened);
+                            if (failure == null) {
+                                statistics.finish(Outcome.COMPLETED, null);
+                            } else {
+                                statistics.finish(
+                                        outputFailed ? Outcome.ABORTED
+                                                : Outcome.FAILED, failure);
+                                getLogger().log(Level.WARNING,
+                                        "Failed to write download response",
+                                        failure);
+                            }
+                            fireDownloadFinished(statistics);
+                        }
+                    });
+        } catch (IOException e) {
+            statistics.setPending(false);
+            source.close();
+            throw e;
+        } catch (RuntimeException e) {
+            statistics.setPending(false);
+            source.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copies the cache time and parameters of the stream to the response
+     * headers like {@link DownloadStream#writeResponse} does.
+     */
+    private static void setResponseHeaders(VaadinResponse response,
+            DownloadStream stream) {
+        response.setCacheTime(stream.getCacheTime());
+        Iterator<String> names = stream.getParameterNames();
+        while (names.hasNext()) {
+            String name = names.next();
+            response.setHeader(name, stream.getParameter(name));
+        }
+    }
+
+    private static void copyRange(SeekableGridStreamResource source,
+            ByteRange range, OutputStream out) throws IOException {
+        InputStream in = source.getStream(range.start);
+        if (in == null) {
+            throw new IOException("No content available at offset "
+                    + range.start);
+        }
+        try {
+            byte[] buffer = new byte[Constants.DEFAULT_BUFFER_SIZE];
+            long remaining = range.getLength();
+            while (remaining > 0) {
+                int read = in.read(buffer, 0,
+                        (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("Content ended before the range "
+                            + range.start + "-" + range.end);
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    static String formatHttpDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat(
+                "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    /**
+     * Called when a download is rejected because the content executor
+     * doesn't accept any more downloads or the {@link DownloadAdmission} of
+     * the session or the server is full. Responds with
+     * {@code 503 Service Unavailable} and {@code Retry-After} by default. The
+     * page of the response tells the client-side when to retry.
+     *
+     * @param response
+     * @throws IOException
+     */
+    protected void handleRejectedDownload(VaadinResponse response)
+            throws IOException {
+        getLogger().warning("Download rejected, too many concurrent downloads");
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", String.valueOf(retryAfter));
+        response.setCacheTime(0);
+        response.setContentType("text/html; charset=UTF-8");
+        PrintWriter writer = response.getWriter();
+        writer.write("<!DOCTYPE html><html><head><meta name=\""
+                + GridFileDownloaderState.RETRY_AFTER_META + "\" content=\""
+                + retryAfter + "\"><title>Too many concurrent downloads"
+                + "</title></head><body>Too many concurrent downloads, "
+                + "please try again later.</body></html>");
+        writer.flush();
+    }
+
+    /**
+     * Sets the time that the client-side waits before it retries a rejected
+     * download, also sent as the {@code Retry-After} header. Further retries
+     * wait twice as long as the previous one. Default is
+     * {@value #DEFAULT_RETRY_AFTER} seconds.
+     *
+     * @param retryAfter
+     *            time in seconds
+     * @see #setMaxDownloadRetries(int)
+     * @see DownloadAdmission
+     */
+    public void setRetryAfter(int retryAfter) {
+        if (retryAfter < 1) {
+            throw new IllegalArgumentException(
+                    "Retry time must be at least one second");
+        }
+        this.retryAfter = retryAfter;
+    }
+
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Sets the time that the browser may reuse content opened from the open
+     * column without asking the server. Once the time has passed, the browser
+     * revalidates its copy with the validators of a
+     * {@link VersionedGridStreamResource} and the content is only sent again
+     * if it has changed. Content of other resources has no validators and is
+     * never cached. Default is {@value #DEFAULT_OPEN_CACHE_TIME} milliseconds.
+     *
+     * @param openCacheTime
+     *            time in milliseconds, or 0 to always ask the server
+     * @see #setOpenColumn(Object)
+     */
+    public void setOpenCacheTime(long openCacheTime) {
+        if (openCacheTime < 0) {
+            throw new IllegalArgumentException(
+                    "Cache time must not be negative");
+        }
+        this.openCacheTime = openCacheTime;
+    }
+
+    public long getOpenCacheTime() {
+        return openCacheTime;
+    }
+
+    /**
+     * Sets how many times the client-side retries a rejected download before
+     * it gives up and shows the processing notification. Default is 3.
+     *
+     * @param maxDownloadRetries
+     *            number of retries, or 0 to not retry
+     */
+    public void setMaxDownloadRetries(int maxDownloadRetries) {
+        if (maxDownloadRetries < 0) {
+            throw new IllegalArgumentException(
+                    "Retries must not be negative");
+        }
+        getState().maxDownloadRetries = maxDownloadRetries;
+    }
+
+    public int getMaxDownloadRetries() {
+        return getState(false).maxDownloadRetries;
+    }
+
+    /**
+     * Returns the row key from a download path of form {@code dl/k/<rowKey>}
+     * or an open path of form
+     * {@code dl/o/<openToken>/<dataProviderId>/<rowKey>}.
+     *
+     * @param path
+     * @return row key, or {@code null} if the path doesn't contain one and the
+     *         row must be delivered through RPC
+     */
+    private String getRowKey(String path) {
+        String prefix = "dl/" + GridFileDownloaderState.ROW_KEY_PATH + "/";
+        if (!path.startsWith(prefix)) {
+            prefix = getOpenPathPrefix();
+            if (path.startsWith(prefix)) {
+                // skip the id of the data provider
+                int slash = path.indexOf('/', prefix.length());
+                prefix = slash < 0 ? path : path.substring(0, slash + 1);
+            }
+        }
+        if (path.startsWith(prefix) && path.length() > prefix.length()) {
+            return path.substring(prefix.length());
+        }
+        return null;
+    }
+
+    private String getOpenPathPrefix() {
+        return "dl/" + GridFileDownloaderState.OPEN_PATH + "/" + openToken
+                + "/";
+    }
+
+    /**
+     * Returns the connector id of the data provider of the Grid, which the
+     * open URLs carry as the row keys are only unique within it.
+     *
+     * @return the connector id, or {@code null} if the Grid has no data
+     *         provider
+     */
+    private String getDataProviderId() {
+        VaadinSession session = getSession();
+        session.lock();
+        try {
+            for (Extension extension : grid.getExtensions()) {
+                if (extension instanceof RpcDataProviderExtension) {
+                    return extension.getConnectorId();
+                }
+            }
+            return null;
+        } finally {
+            session.unlock();
+        }
+    }
+
+    /**
+     * Resolves the item id for the row key that the client-side sent in the
+     * download URL. The key is only known while the row is in the client-side
+     * cache of the Grid, which is always the case for a clicked row.
+     *
+     * @param rowKey
+     * @return the item id, or {@code null} if the key is unknown
+     */
+    protected Object resolveRowKey(String rowKey) {
+        VaadinSession session = getSession();
+        session.lock();
+        try {
+            for (Extension extension : grid.getExtensions()) {
+                if (extension instanceof RpcDataProviderExtension) {
+                    return ((RpcDataProviderExtension) extension)
+                            .getKeyMapper().get(rowKey);
+                }
+            }
+            return null;
+        } finally {
+            session.unlock();
+        }
+    }
+
+    protected void handleUnknownRowKey(String rowKey) {
+        getLogger().warning(
+                "Download attempt for unknown row key " + rowKey);
+    }
+
+    protected void handleRPCTimeout() {
+        getLogger().severe(
+                "Download attempt timeout before receiving RPC call about row");
+    }
+
+    /**
+     * Wait until RPC call has reached the server-side with the rowId. The
+     * waiting thread is woken up by {@link #queueRows(List, boolean)} as soon
+     * as a row is queued, or released when the timeout from
+     * {@link #getEffectiveRPCTimeout()} has passed.
+     *
+     * @return {@code true} if the queue has a row for the request
+     */
+    protected boolean waitForRPC() {
+        return waitForRPC(null);
+    }
+
+    /**
+     * Like {@link #waitForRPC()}, but waits for the row of the click with the
+     * given sequence number.
+     *
+     * @param sequence
+     *            sequence number of the request, or {@code null} to wait for
+     *            any row
+     * @return {@code true} if the queue has a row for the request
+     */
+    protected boolean waitForRPC(Integer sequence) {
+        long start = System.nanoTime();
+        long timeout = TimeUnit.MILLISECONDS
+                .toNanos(getEffectiveRPCTimeout());
+        synchronized (rowIdLock) {
+            long remaining = timeout;
+            boolean waited = false;
+            while (findQueuedRow(sequence) == null) {
+                if (remaining <= 0) {
+                    // a timeout tells nothing about the latency, the RPC
+                    // call may never come
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(rowIdLock, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return findQueuedRow(sequence) != null;
+                }
+                waited = true;
+                remaining = timeout - (System.nanoTime() - start);
+            }
+            if (waited) {
+                // a row that was queued before the request arrived would
+                // measure nothing but the lookup
+                recordRPCLatency(System.nanoTime() - start);
+            }
+        }
+        return true;
+    }
+
+    private void recordRPCLatency(long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        if (averageRPCLatency < 0) {
+            averageRPCLatency = millis;
+        } else {
+            averageRPCLatency = (averageRPCLatency * 7 + millis) / 8;
+        }
+    }
+
+    /**
+     * Sets the maximum time to wait for the RPC call about the clicked row
+     * before the download request is abandoned. Default is
+     * {@value #DEFAULT_RPC_TIMEOUT} milliseconds.
+     *
+     * @param rpcTimeout
+     *            timeout in milliseconds
+     * @see #setAdaptiveRPCTimeout(boolean)
+     */
+    public void setRPCTimeout(int rpcTimeout) {
+        if (rpcTimeout <= 0) {
+            throw new IllegalArgumentException(
+                    "RPC timeout must be a positive value");
+        }
+        this.rpcTimeout = rpcTimeout;
+    }
+
+    /**
+     * Returns the maximum time to wait for the RPC call about the clicked row.
+     *
+     * @return timeout in milliseconds
+     */
+    public int getRPCTimeout() {
+        return rpcTimeout;
+    }
+
+    /**
+     * Sets whether the client-side should identify the clicked row in the
+     * download URL instead of a separate RPC call. This is enabled by default
+     * and saves a round trip per download. RPC is still used for rows whose
+     * data isn't available on the client-side. The rows of downloads that are
+     * started, or start waiting, together are sent in a single RPC call.
+     *
+     * @param rowKeyInURL
+     */
+    public void setRowKeyInURL(boolean rowKeyInURL) {
+        getState().rowKeyInURL = rowKeyInURL;
+    }
+
+    public boolean isRowKeyInURL() {
+        return getState(false).rowKeyInURL;
+    }
+
+    /**
+     * Sets whether the RPC timeout should adapt to the measured RPC latency.
+     * When enabled, the timeout is shortened to a multiple of the average
+     * time that download requests waited for their RPC call, so that request
+     * threads are released sooner, but never below
+     * {@value #MINIMUM_ADAPTIVE_RPC_TIMEOUT} milliseconds or above
+     * {@link #getRPCTimeout()}. Disabled by default, since a single slow RPC
+     * call after a run of fast ones is abandoned with a shortened timeout.
+     *
+     * @param adaptiveRPCTimeout
+     */
+    public void setAdaptiveRPCTimeout(boolean adaptiveRPCTimeout) {
+        this.adaptiveRPCTimeout = adaptiveRPCTimeout;
+    }
+
+    public boolean isAdaptiveRPCTimeout() {
+        return adaptiveRPCTimeout;
+    }
+
+    /**
+     * Returns the timeout that is used for the next wait for the RPC call.
+     *
+     * @return timeout in milliseconds
+     */
+    protected long getEffectiveRPCTimeout() {
+        long latency;
+        synchronized (rowIdLock) {
+            latency = averageRPCLatency;
+        }
+        if (!adaptiveRPCTimeout || latency < 0) {
+            return rpcTimeout;
+        }
+        return Math.min(rpcTimeout, Math.max(MINIMUM_ADAPTIVE_RPC_TIMEOUT,
+                latency * ADAPTIVE_RPC_TIMEOUT_FACTOR));
+    }
+
+    /**
+     * Override this method if you want more specific failure handling for write
+     * response exceptions. The main point of this is to keep the exceptions
+     * from e.g. user cancelling the download from showing up in tooltip for the
+     * Grid.
+     *
+     * @param e
+     */
+    protected void handleWriteResponseException(Exception e) {
+        getLogger().log(Level.WARNING, "Failed to write download response", e);
+        for (Type type : Type.values()) {
+            if (type.getStyle().equals(getState().failureNotificationType)) {
+                Notification.show(getState().failureCaption,
+                        getState().failureDescription, type);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Marks one download request processed. Called exactly once for every
+     * download request that isn't rejected, with the session locked.
+     */
+    protected void markProcessed() {
+        setRowId(null);
+        ++getState().processedCount;
+    }
+
+    private StreamResource getResource() {
+        return (StreamResource) getFileDownloadResource();
+    }
+
+    protected void setRowId(Object rowId) {
+        synchronized (rowIdLock) {
+            this.rowId = rowId;
+        }
+    }
+
+    /**
+     * Returns the row that is being downloaded. While a download is processed
+     * this returns the row of that download on the thread that processes it,
+     * which makes it safe to call from {@link GridStreamResource} methods when
+     * several downloads run concurrently.
+     *
+     * @return the row id, or {@code null} if not known
+     */
+    protected Object getRowId() {
+        CurrentRow current = CURRENT_ROW.get();
+        if (current != null && current.downloader == this) {
+            return current.rowId;
+        }
+        return rowId;
+    }
+
+    /**
+     * Starts the download of all rows that are selected in the Grid as a
+     * single ZIP archive, e.g. from the click listener of a button. The
+     * archive is streamed to the browser entry by entry, and when a
+     * {@link #setContentExecutor(Executor) content executor} is set the
+     * following entries are opened in parallel with the transfer.
+     */
+    public void downloadSelectedRows() {
+        getRpcProxy(GridFileDownloaderClientRpc.class).downloadArchive();
+    }
+
+    /**
+     * Starts the download of the rows of the Grid, in their current order and
+     * filtering, as a single file in the given format, e.g. from the click
+     * listener of a button. Visible columns are exported with their header
+     * captions, and values are formatted with the converters of the columns.
+     * <p>
+     * The rows are read from the container in batches of
+     * {@link #setExportBatchSize(int)} and streamed to the browser, so the
+     * whole data set is never held in memory. When a
+     * {@link #setContentExecutor(Executor) content executor} is set, the
+     * following batches are formatted in parallel with the transfer.
+     *
+     * @param format
+     */
+    public void downloadGrid(ExportFormat format) {
+        if (format == null) {
+            throw new IllegalArgumentException("Export format must be given");
+        }
+        ((StreamResource) getResource(EXPORT_KEY)).setFilename(exportFilename
+                + "." + format.getExtension());
+        markAsDirty();
+        getRpcProxy(GridFileDownloaderClientRpc.class).downloadExport();
+    }
+
+    /**
+     * Sets the file name of the files created by
+     * {@link #downloadGrid(ExportFormat)}, without the extension. Default is
+     * {@code export}.
+     *
+     * @param exportFilename
+     */
+    public void setExportFilename(String exportFilename) {
+        this.exportFilename = exportFilename;
+    }
+
+    public String getExportFilename() {
+        return exportFilename;
+    }
+
+    /**
+     * Sets the number of rows read from the container at a time by
+     * {@link #downloadGrid(ExportFormat)}. The session is locked while a
+     * batch is read, so larger batches mean fewer but longer pauses for the
+     * UI. Default is {@value #DEFAULT_EXPORT_BATCH_SIZE}.
+     *
+     * @param exportBatchSize
+     */
+    public void setExportBatchSize(int exportBatchSize) {
+        if (exportBatchSize < 1) {
+            throw new IllegalArgumentException(
+                    "Export batch size must be positive");
+        }
+        this.exportBatchSize = exportBatchSize;
+    }
+
+    public int getExportBatchSize() {
+        return exportBatchSize;
+    }
+
+    /**
+     * Sets whether text cells of CSV exports that start with {@code =},
+     * {@code +}, {@code -} or {@code @} are prefixed with an apostrophe, so
+     * that spreadsheets show them as text instead of evaluating them as
+     * formulas. Exports of user-entered data could otherwise run formulas
+     * chosen by other users. Numeric values are never prefixed, and XLSX
+     * cells are always written as values. Enabled by default.
+     *
+     * @param escapeCsvFormulas
+     */
+    public void setEscapeCsvFormulas(boolean escapeCsvFormulas) {
+        this.escapeCsvFormulas = escapeCsvFormulas;
+    }
+
+    public boolean isEscapeCsvFormulas() {
+        return escapeCsvFormulas;
+    }
+
+    /**
+     * Sets the file name of the archive created by
+     * {@link #downloadSelectedRows()}. Default is {@code download.zip}.
+     *
+     * @param archiveFilename
+     */
+    public void setArchiveFilename(String archiveFilename) {
+        ((StreamResource) getResource(ARCHIVE_KEY))
+                .setFilename(archiveFilename);
+        markAsDirty();
+    }
+
+    public String getArchiveFilename() {
+        return ((StreamResource) getResource(ARCHIVE_KEY)).getFilename();
+    }
+
+    /**
+     * Sets the content types that are compressed with gzip for browsers that
+     * accept it, e.g. {@code "text/*", "application/json"}. The type is
+     * resolved from the file name before any override to
+     * {@code application/octet-stream}. Compressed responses don't support
+     * resuming. By default nothing is compressed.
+     *
+     * @param contentTypes
+     *            content types, optionally ending with a {@code /*} wildcard
+     */
+    public void setCompressedContentTypes(String... contentTypes) {
+        Set<String> types = new LinkedHashSet<String>();
+        for (String type : contentTypes) {
+            types.add(type.trim().toLowerCase(Locale.ROOT));
+        }
+        compressedContentTypes = types;
+    }
+
+    public Set<String> getCompressedContentTypes() {
+        return Collections.unmodifiableSet(compressedContentTypes);
+    }
+
+    /**
+     * Sets the cache for compressed variants of rows, so that frequently
+     * downloaded content isn't compressed again for every request. Only rows
+     * of a {@link VersionedGridStreamResource} are cached. The cache is not
+     * serialized with the session.
+     *
+     * @param compressedContentCache
+     *            the cache, or {@code null} to compress every response
+     */
+    public void setCompressedContentCache(
+            CompressedContentCache compressedContentCache) {
+        this.compressedContentCache = compressedContentCache;
+    }
+
+    public CompressedContentCache getCompressedContentCache() {
+        return compressedContentCache;
+    }
+
+    /**
+     * Sets the cache for the content of rows. Repeated downloads of a cached
+     * row are served without opening the {@link GridStreamResource}. Rows of
+     * a {@link FileGridStreamResource} are not cached, since they are read
+     * from the disk anyway. The cache is not serialized with the session.
+     * <p>
+     * A cache may be shared by several downloaders to bound the memory and
+     * disk space of all of them. The content is kept apart per downloader,
+     * unless the downloaders are given the same
+     * {@link #setContentCacheScope(Object) scope}.
+     *
+     * @param contentCache
+     *            the cache, or {@code null} to open the resource for every
+     *            download
+     */
+    public void setContentCache(ContentCache contentCache) {
+        this.contentCache = contentCache;
+    }
+
+    public ContentCache getContentCache() {
+        return contentCache;
+    }
+
+    /**
+     * Sets the scope of the cached content of this downloader. Downloaders
+     * that share a {@link ContentCache} only reuse each other's content when
+     * their scopes are equal, so give the same scope only to downloaders that
+     * serve the same content for the same row ids to every user. By default
+     * every downloader has a scope of its own.
+     *
+     * @param contentCacheScope
+     *            the scope, not {@code null}
+     */
+    public void setContentCacheScope(Object contentCacheScope) {
+        assert contentCacheScope != null : "The scope of the content cache may never be null!";
+        this.contentCacheScope = contentCacheScope;
+    }
+
+    public Object getContentCacheScope() {
+        return contentCacheScope;
+    }
+
+    /**
+     * Makes the download cells fetch their content from a
+     * {@link SignedDownloadServlet} instead of this downloader. A click asks
+     * the server-side for a short-lived URL with a token that is signed with
+     * the given tokens, and the servlet serves the content from the identity
+     * in the token without the session. In a cluster, any server can serve the
+     * transfer. Requires a {@link SignedGridStreamResource}.
+     *
+     * @param servletUrl
+     *            URL that the servlet is mapped to, e.g.
+     *            {@code /myapp/download}
+     * @param downloadTokens
+     *            tokens with the same secret as the servlet, or {@code null}
+     *            to download through the session (default)
+     */
+    public void setSignedDownloads(String servletUrl,
+            DownloadTokens downloadTokens) {
+        if (downloadTokens != null) {
+            if (!(gridStreamResource instanceof SignedGridStreamResource)) {
+                throw new IllegalStateException(
+                        "Signed downloads require a SignedGridStreamResource");
+            }
+            if (servletUrl == null) {
+                throw new IllegalArgumentException(
+                        "The servlet URL must be given");
+            }
+        }
+        if (servletUrl != null && servletUrl.endsWith("/")) {
+            servletUrl = servletUrl.substring(0, servletUrl.length() - 1);
+        }
+        signedDownloadUrl = servletUrl;
+        this.downloadTokens = downloadTokens;
+        getState().signedDownloads = downloadTokens != null;
+    }
+
+    /**
+     * Sets the time in milliseconds that a signed download URL may be used
+     * after the click. Default is {@value #DEFAULT_SIGNED_DOWNLOAD_VALIDITY}.
+     *
+     * @param signedDownloadValidity
+     */
+    public void setSignedDownloadValidity(long signedDownloadValidity) {
+        if (signedDownloadValidity <= 0) {
+            throw new IllegalArgumentException(
+                    "Signed download validity must be positive");
+        }
+        this.signedDownloadValidity = signedDownloadValidity;
+    }
+
+    public long getSignedDownloadValidity() {
+        return signedDownloadValidity;
+    }
+
+    /**
+     * Sets the executor that generates downloads in the background. When set,
+     * clicking a download cell starts a {@link GenerationJob} that writes the
+     * content of the row into a temporary file, and the browser downloads the
+     * file once it is ready. The progress of the jobs is shown in the browser,
+     * where they can also be cancelled. Use this for content that takes so
+     * long to generate that the download request could time out; the UI
+     * should use push so that progress and completion are shown right away.
+     * <p>
+     * A bounded executor, e.g. one from
+     * {@link #createContentExecutor(int, int)}, limits the number of jobs of
+     * all sessions. The executor is not serialized with the session.
+     *
+     * @param generationExecutor
+     *            the executor, or {@code null} to generate downloads during
+     *            the download request (default)
+     * @see #setMaxGenerationJobs(int)
+     */
+    public void setGenerationExecutor(Executor generationExecutor) {
+        this.generationExecutor = generationExecutor;
+        getState().backgroundGeneration = generationExecutor != null;
+    }
+
+    public Executor getGenerationExecutor() {
+        return generationExecutor;
+    }
+
+    /**
+     * Sets the maximum number of downloads of this downloader that are
+     * generated in the background at the same time. Default is
+     * {@value #DEFAULT_MAX_GENERATION_JOBS}.
+     *
+     * @param maxGenerationJobs
+     */
+    public void setMaxGenerationJobs(int maxGenerationJobs) {
+        if (maxGenerationJobs < 1) {
+            throw new IllegalArgumentException(
+                    "At least one generation job must be allowed");
+        }
+        this.maxGenerationJobs = maxGenerationJobs;
+    }
+
+    public int getMaxGenerationJobs() {
+        return maxGenerationJobs;
+    }
+
+    /**
+     * Sets the maximum number of finished background generations whose files
+     * are kept until the user downloads or discards them. When another
+     * generation finishes, the files of the oldest ones are deleted. Default
+     * is {@value #DEFAULT_MAX_FINISHED_GENERATION_JOBS}.
+     *
+     * @param maxFinishedGenerationJobs
+     */
+    public void setMaxFinishedGenerationJobs(int maxFinishedGenerationJobs) {
+        if (maxFinishedGenerationJobs < 1) {
+            throw new IllegalArgumentException(
+                    "At least one finished generation job must be kept");
+        }
+        this.maxFinishedGenerationJobs = maxFinishedGenerationJobs;
+    }
+
+    public int getMaxFinishedGenerationJobs() {
+        return maxFinishedGenerationJobs;
+    }
+
+    /**
+     * Sets the time that the file of a finished background generation is kept
+     * for downloading. Expired files are deleted the next time a generation
+     * starts or finishes, and in any case when the downloader is detached.
+     * Default is {@value #DEFAULT_FINISHED_GENERATION_JOB_TTL} milliseconds.
+     *
+     * @param finishedGenerationJobTTL
+     *            time in milliseconds
+     */
+    public void setFinishedGenerationJobTTL(long finishedGenerationJobTTL) {
+        if (finishedGenerationJobTTL < 0) {
+            throw new IllegalArgumentException(
+                    "Time to live must not be negative");
+        }
+        this.finishedGenerationJobTTL = finishedGenerationJobTTL;
+    }
+
+    public long getFinishedGenerationJobTTL() {
+        return finishedGenerationJobTTL;
+    }
+
+    /**
+     * Returns the background generations that are running or whose file has
+     * not been downloaded yet.
+     *
+     * @return the jobs
+     */
+    public List<GenerationJob> getGenerationJobs() {
+        return new ArrayList<GenerationJob>(generationJobs.values());
+    }
+
+    /**
+     * Cancels the background generations and deletes their files.
+     */
+    @Override
+    public void detach() {
+        for (GenerationJob job : getGenerationJobs()) {
+            job.cancel();
+        }
+        super.detach();
+    }
+
+    /**
+     * Sets the executor that prefetches the content of rows when the user
+     * hovers over their download cell, so that the download mostly finds the
+     * content already read. Prefetched content is stored in the
+     * {@link #setContentCache(ContentCache) content cache}, which must be set
+     * as well and bounds the memory it takes. Use a bounded executor, e.g.
+     * from {@link #createContentExecutor(int, int)}; hints that it rejects
+     * are dropped. The executor is not serialized with the session.
+     *
+     * @param prefetchExecutor
+     *            the executor, or {@code null} to disable prefetching
+     *            (default)
+     */
+    public void setPrefetchExecutor(Executor prefetchExecutor) {
+        this.prefetchExecutor = prefetchExecutor;
+        getState().prefetch = prefetchExecutor != null;
+    }
+
+    public Executor getPrefetchExecutor() {
+        return prefetchExecutor;
+    }
+
+    /**
+     * Sets how long prefetched content is kept if the row doesn't get
+     * downloaded. Once downloaded, it is kept like any cached content.
+     * Default is {@value #DEFAULT_PREFETCH_TTL} milliseconds.
+     *
+     * @param prefetchTTL
+     *            time in milliseconds
+     */
+    public void setPrefetchTTL(long prefetchTTL) {
+        if (prefetchTTL < 0) {
+            throw new IllegalArgumentException(
+                    "Prefetch TTL must not be negative");
+        }
+        this.prefetchTTL = prefetchTTL;
+    }
+
+    public long getPrefetchTTL() {
+        return prefetchTTL;
+    }
+
+    /**
+     * Sets how long the pointer must stay on a download cell before its row
+     * is prefetched, so that merely moving across the Grid doesn't cause
+     * prefetches. Default is 150 milliseconds.
+     *
+     * @param prefetchHoverDelay
+     *            delay in milliseconds
+     */
+    public void setPrefetchHoverDelay(int prefetchHoverDelay) {
+        getState().prefetchHoverDelay = prefetchHoverDelay;
+    }
+
+    public int getPrefetchHoverDelay() {
+        return getState(false).prefetchHoverDelay;
+    }
+
+    /**
+     * Adds a listener that is notified with the timings and outcome of every
+     * download request. Listeners are called on the thread that handled the
+     * request, without the session lock, so they should be quick.
+     *
+     * @param listener
+     * @see DownloadMetrics
+     */
+    public void addDownloadListener(DownloadListener listener) {
+        downloadListeners.add(listener);
+    }
+
+    public void removeDownloadListener(DownloadListener listener) {
+        downloadListeners.remove(listener);
+    }
+
+    /**
+     * Sets whether the full content of downloads is written with non-blocking
+     * servlet I/O. When enabled, the request thread is released once the
+     * source has been opened, and the content is only read and written while
+     * the client can take more data, so slow clients don't each hold a
+     * container thread. Ranges, compressed responses and files sent with
+     * sendfile are still written as before.
+     * <p>
+     * This requires a Servlet 3.1 container and async support enabled for
+     * the Vaadin servlet, e.g. {@code asyncSupported = true} in
+     * {@code @WebServlet}. Otherwise, e.g. on a Servlet 3.0 container,
+     * downloads are written on the request thread. Disabled by default.
+     *
+     * @param asyncWrites
+     */
+    public void setAsyncWrites(boolean asyncWrites) {
+        this.asyncWrites = asyncWrites;
+    }
+
+    public boolean isAsyncWrites() {
+        return asyncWrites;
+    }
+
+    /**
+     * Sets the maximum rate at which a single download is written to the
+     * client. The limit also applies to the downloads in progress. Sessions
+     * and the whole server can be limited too, see {@link BandwidthLimiter}.
+     * Limited downloads are not sent with sendfile or non-blocking writes.
+     *
+     * @param bytesPerSecond
+     *            the rate limit, or 0 for no limit (default)
+     */
+    public void setDownloadBandwidthLimit(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException(
+                    "Bandwidth limit must not be negative");
+        }
+        downloadBandwidthLimit = bytesPerSecond;
+        for (BandwidthLimiter limiter : downloadLimiters) {
+            limiter.setBytesPerSecond(bytesPerSecond);
+        }
+    }
+
+    public long getDownloadBandwidthLimit() {
+        return downloadBandwidthLimit;
+    }
+
+    /**
+     * Sets the maximum number of downloads a single client may have in
+     * progress at the same time for this extension. Further clicks wait in the
+     * queue of the client-side, see {@link #setMaxQueuedDownloads(int)}, or
+     * show the processing notification. Default is 1. Note that when more than one
+     * download is allowed, the {@link GridStreamResource} should use
+     * {@link #getRowId()} rather than track the row through
+     * {@link #setRowId(Object)}.
+     *
+     * @param maxConcurrentDownloads
+     * @see #setContentExecutor(Executor)
+     */
+    public void setMaxConcurrentDownloads(int maxConcurrentDownloads) {
+        if (maxConcurrentDownloads < 1) {
+            throw new IllegalArgumentException(
+                    "At least one concurrent download must be allowed");
+        }
+        getState().maxConcurrentDownloads = maxConcurrentDownloads;
+    }
+
+    public int getMaxConcurrentDownloads() {
+        return getState(false).maxConcurrentDownloads;
+    }
+
+    /**
+     * Sets the maximum number of clicked rows that the client-side keeps
+     * waiting while {@link #getMaxConcurrentDownloads()} downloads are in
+     * progress. The waiting downloads start one by one as the previous ones
+     * finish, so a user can click, or press Enter on, many rows in a row.
+     * Clicks beyond this limit show the processing notification. Default is
+     * 0, i.e. no downloads wait.
+     *
+     * @param maxQueuedDownloads
+     */
+    public void setMaxQueuedDownloads(int maxQueuedDownloads) {
+        if (maxQueuedDownloads < 0) {
+            throw new IllegalArgumentException(
+                    "Queued downloads can't be negative");
+        }
+        getState().maxQueuedDownloads = maxQueuedDownloads;
+    }
+
+    public int getMaxQueuedDownloads() {
+        return getState(false).maxQueuedDownloads;
+    }
+
+    /**
+     * Sets the executor that generates and writes the download content. By
+     * default, or when set to {@code null}, the content is generated on the
+     * request thread. A bounded executor, e.g. one from
+     * {@link #createContentExecutor(int, int)}, limits how much of the server
+     * the downloads may occupy; downloads that it rejects are handled with
+     * {@link #handleRejectedDownload(VaadinResponse)}. Archives and exports of
+     * the Grid use it for opening and formatting content ahead of the
+     * transfer, and shared and written contents for producing it. The
+     * executor is not serialized with the session.
+     *
+     * @param contentExecutor
+     */
+    public void setContentExecutor(Executor contentExecutor) {
+        this.contentExecutor = contentExecutor;
+    }
+
+    public Executor getContentExecutor() {
+        return contentExecutor;
+    }
+
+    /**
+     * Creates a bounded executor that can be shared by the downloaders of
+     * all sessions with {@link #setContentExecutor(Executor)}.
+     *
+     * @param threads
+     *            maximum number of downloads generated at the same time
+     * @param queueSize
+     *            maximum number of downloads waiting for a thread before new
+     *            ones are rejected
+     * @return the executor
+     */
+    public static ThreadPoolExecutor createContentExecutor(int threads,
+            int queueSize) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                        queueSize), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r,
+                                "GridFileDownloader-content-"
+                                        + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @Override
+    protected GridFileDownloaderState getState() {
+        return (GridFileDownloaderState) super.getState();
+    }
+
+    @Override
+    protected GridFileDownloaderState getState(boolean markAsDirty) {
+        return (GridFileDownloaderState) super.getState(markAsDirty);
+    }
+
+    /**
+     * DO NOT CALL THIS EXPLICITLY! The behaviour of this extension is not
+     * guaranteed if the target changes from the default.
+     */
+    @Override
+    public void extend(AbstractComponent target) {
+        if (target instanceof Grid) {
+            grid = (Grid) target;
+            super.extend(target);
+        } else {
+            throw new IllegalArgumentException(
+                    "Target must be instance of Grid");
         }
     }
 
@@ -289,29 +3405,122 @@ public class GridFileDownloader extends FileDownloader {
      * calculated for the wrong column.
      */
     public void recalculateDownloadColumn() {
-        getState().downloadColumnIndex = grid.getColumns().indexOf(
-                grid.getColumn(downloadPropertyId));
+        getState().downloadColumnIndex = getColumnIndex(downloadPropertyId);
+        if (openPropertyId != null) {
+            getState().openColumnIndex = getColumnIndex(openPropertyId);
+        }
+    }
+
+    private int getColumnIndex(Object propertyId) {
+        int index = grid.getColumns().indexOf(grid.getColumn(propertyId));
         if (grid.getSelectionModel() instanceof MultiSelectionModel) {
             // MultiSelection adds extra column to the grid
-            ++getState().downloadColumnIndex;
+            ++index;
+        }
+        return index;
+    }
+
+    /**
+     * Sets the open column. Clicking a cell of the column opens the content of
+     * the row in a new browser window instead of downloading it: images,
+     * video, audio, PDF and plain text are sent inline with their real content
+     * type, see {@link #isInlineContentType(String)}, and the browser may
+     * cache them for {@link #setOpenCacheTime(long)}. The row must be on the
+     * client-side, as the row key is always sent in the URL. Like for the
+     * download column, {@link #recalculateDownloadColumn()} must be
+     * explicitly called every time column order or count or selection mode
+     * changes.
+     *
+     * @param propertyId
+     *            the property id of the column, or {@code null} for none
+     */
+    public void setOpenColumn(Object propertyId) {
+        openPropertyId = propertyId;
+        if (propertyId == null) {
+            getState().openColumnIndex = null;
+        } else {
+            recalculateDownloadColumn();
         }
     }
 
+    /**
+     * Adds an open column with propertyId {@link FontAwesome#EYE} to the Grid
+     * and registers it with this extension. The column is added like the one
+     * of {@link #addDownloadColumn()}.
+     *
+     * @see GridFileDownloader#setOpenColumn(Object)
+     */
+    public void addOpenColumn() {
+        FontAwesome icon = FontAwesome.EYE;
+        addIconColumn(icon, createOpenHtml(),
+                new PropertyValueGenerator<String>() {
+
+                    @Override
+                    public String getValue(Item item, Object itemId,
+                            Object propertyId) {
+                        return createOpenHtml();
+                    }
+
+                    @Override
+                    public Class<String> getType() {
+                        return String.class;
+                    }
+                });
+        // the positions of the columns after it have changed
+        setOpenColumn(icon);
+    }
+
     /**
      * Adds a download column with propertyId {@link FontAwesome#DOWNLOAD} to
      * the Grid and registers it with this extension.
+     * <p>
+     * If the data source of the Grid is a {@link GeneratedPropertyContainer},
+     * the column is generated, so its HTML is only created for the rows that
+     * are rendered and the items are left untouched. Otherwise the column is
+     * added to the data source as a property whose default value every item
+     * holds. To have the column generated, wrap the data source before
+     * creating the downloader, e.g.
+     * {@code grid.setContainerDataSource(new GeneratedPropertyContainer(container))}
+     * .
      *
      * @see GridFileDownloader#setDownloadColumn(Object)
      */
     protected void addDownloadColumn() {
-        Indexed dataSource = grid.getContainerDataSource();
         FontAwesome icon = FontAwesome.DOWNLOAD;
-        dataSource.addContainerProperty(icon, String.class,
-                createDownloadHtml());
+        addIconColumn(icon, createDownloadHtml(),
+                new PropertyValueGenerator<String>() {
+
+                    @Override
+                    public String getValue(Item item, Object itemId,
+                            Object propertyId) {
+                        return createDownloadHtml();
+                    }
+
+                    @Override
+                    public Class<String> getType() {
+                        return String.class;
+                    }
+                });
+        setDownloadColumn(icon);
+    }
+
+    /**
+     * Adds a column of the given icon, generated if the data source of the
+     * Grid is a {@link GeneratedPropertyContainer} and otherwise as a
+     * container property. The data source itself is never replaced.
+     */
+    private void addIconColumn(FontAwesome icon, String html,
+            PropertyValueGenerator<String> generator) {
+        Indexed dataSource = grid.getContainerDataSource();
+        if (dataSource instanceof GeneratedPropertyContainer) {
+            ((GeneratedPropertyContainer) dataSource).addGeneratedProperty(
+                    icon, generator);
+        } else {
+            dataSource.addContainerProperty(icon, String.class, html);
+        }
         grid.getColumn(icon).setRenderer(new HtmlRenderer());
-        grid.getHeaderRow(0).getCell(icon).setHtml(createDownloadHtml());
+        grid.getHeaderRow(0).getCell(icon).setHtml(html);
         grid.getColumn(icon).setSortable(false);
-        setDownloadColumn(icon);
     }
 
     /**
@@ -322,4 +3531,13 @@ public class GridFileDownloader extends FileDownloader {
     protected String createDownloadHtml() {
         return FontAwesome.DOWNLOAD.getHtml();
     }
+
+    /**
+     * Creates the HTML content of the generated open column.
+     *
+     * @return HTML content as String
+     */
+    protected String createOpenHtml() {
+        return FontAwesome.EYE.getHtml();
+    }
 }
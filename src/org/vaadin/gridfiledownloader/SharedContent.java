@@ -0,0 +1,416 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vaadin.server.Constants;
+
+/**
+ * Content of a {@link GridFileDownloader.SharedGridStreamResource} that is
+ * being read once for all concurrent downloads with the same key. A producer
+ * task on the content executor copies the source into a buffer that is kept
+ * on the heap up to {@link #MEMORY_LIMIT} and spilled to a temporary file
+ * beyond that. Without an executor, or if it rejects the producer, the first
+ * download copies the whole source before it starts reading. A reader that
+ * finds the producer still queued after {@link #PRODUCER_START_WAIT} copies
+ * the source itself, so a busy executor can't keep the downloads waiting for
+ * a task queued behind them. Every
+ * download reads the buffer from the start at its own pace, so downloads that
+ * join late replay what has already been produced.
+ * <p>
+ * Downloads that start after the content has been produced completely read
+ * the source again. The buffer is released when the producer and all readers
+ * are done, and the producer stops early if all readers go away.
+ */
+class SharedContent {
+
+    /**
+     * Opens the source on the calling thread of the first download.
+     */
+    interface Source {
+        InputStream open();
+    }
+
+    /**
+     * Number of bytes kept on the heap before the rest is spilled to disk.
+     */
+    static final int MEMORY_LIMIT = 1024 * 1024;
+
+    /**
+     * Time in milliseconds that a reader waits for a queued producer to
+     * start before it copies the source itself.
+     */
+    static final long PRODUCER_START_WAIT = 100;
+
+    private static final ConcurrentMap<Object, SharedContent> PRODUCING = new ConcurrentHashMap<Object, SharedContent>();
+
+    private static Logger getLogger() {
+        return Logger.getLogger(SharedContent.class.getName());
+    }
+
+    private final Object key;
+    private byte[] memory = new byte[Constants.DEFAULT_BUFFER_SIZE];
+    private int memoryLength = 0;
+    private File spillFile;
+    private FileChannel spill;
+    // source that the queued producer hasn't taken yet
+    private InputStream pendingSource;
+    private long length = 0;
+    private boolean complete = false;
+    private boolean producerDone = false;
+    private boolean abandoned = false;
+    private IOException failure;
+    private int readers = 0;
+
+    private SharedContent(Object key) {
+        this.key = key;
+    }
+
+    /**
+     * Returns a stream of the content with the given key, joining the
+     * production already in progress if there is one, or else opening the
+     * source and starting to produce it.
+     *
+     * @param key
+     *            identity of the content, equal for equal content
+     * @param source
+     *            opens the content if nobody is producing it
+     * @param executor
+     *            executor for the producer, or {@code null} to produce on the
+     *            calling thread
+     * @return the stream, or {@code null} if the source returned
+     *         {@code null}
+     */
+    static InputStream open(Object key, Source source, Executor executor) {
+        while (true) {
+            SharedContent content = PRODUCING.get(key);
+            if (content == null) {
+                SharedContent created = new SharedContent(key);
+                content = PRODUCING.putIfAbsent(key, created);
+                if (content == null) {
+                    return created.produce(source, executor);
+                }
+            }
+            InputStream reader = content.newReader();
+            if (reader != null) {
+                return reader;
+            }
+            // finished or abandoned in the meantime
+            PRODUCING.remove(key, content);
+        }
+    }
+
+    private InputStream produce(Source source, Executor executor) {
+        // registered first, so that the content isn't abandoned while opening
+        Reader reader = newReader();
+        final InputStream in;
+        try {
+            in = source.open();
+        } catch (RuntimeException e) {
+            fail(new IOException("Opening the shared content failed", e));
+            reader.close();
+            throw e;
+        }
+        if (in == null) {
+            fail(new IOException("No shared content"));
+            reader.close();
+            return null;
+        }
+        if (executor == null) {
+            copy(in);
+            return reader;
+        }
+        synchronized (this) {
+            pendingSource = in;
+        }
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    InputStream source = takePendingSource();
+                    if (source != null) {
+                        copy(source);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            InputStream pending = takePendingSource();
+            if (pending != null) {
+                copy(pending);
+            }
+        }
+        return reader;
+    }
+
+    /**
+     * Takes the source over for copying it, so that only one of the producer
+     * and the readers does.
+     *
+     * @return the source, or {@code null} if copying has started already
+     */
+    private synchronized InputStream takePendingSource() {
+        InputStream source = pendingSource;
+        pendingSource = null;
+        return source;
+    }
+
+    private void copy(InputStream in) {
+        IOException error = null;
+        try {
+            byte[] buffer = new byte[Constants.DEFAULT_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                if (!append(buffer, read)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = new IOException("Producing the shared content failed", e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignore) {
+            }
+        }
+        PRODUCING.remove(key, this);
+        synchronized (this) {
+            if (error != null) {
+                failure = error;
+            } else {
+                complete = true;
+            }
+            producerDone = true;
+            notifyAll();
+            if (readers == 0) {
+                release();
+            }
+        }
+    }
+
+    private void fail(IOException e) {
+        PRODUCING.remove(key, this);
+        synchronized (this) {
+            failure = e;
+            producerDone = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Appends the bytes to the buffer.
+     *
+     * @return {@code false} if all readers have gone away
+     */
+    private boolean append(byte[] bytes, int count) throws IOException {
+        synchronized (this) {
+            if (abandoned) {
+                return false;
+            }
+            int toMemory = (int) Math.max(0,
+                    Math.min(count, MEMORY_LIMIT - length));
+            if (toMemory > 0) {
+                if (memoryLength + toMemory > memory.length) {
+                    byte[] grown = new byte[Math.min(MEMORY_LIMIT, Math.max(
+                            memory.length * 2, memoryLength + toMemory))];
+                    System.arraycopy(memory, 0, grown, 0, memoryLength);
+                    memory = grown;
+                }
+                System.arraycopy(bytes, 0, memory, memoryLength, toMemory);
+                memoryLength += toMemory;
+            }
+            if (toMemory == count) {
+                length += count;
+                notifyAll();
+                return true;
+            }
+            if (spill == null) {
+                spillFile = File.createTempFile("gridfiledownloader-shared",
+                        ".tmp");
+                spill = new RandomAccessFile(spillFile, "rw").getChannel();
+            }
+            long position = length + toMemory - memoryLength;
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, toMemory, count
+                    - toMemory);
+            while (buffer.hasRemaining()) {
+                position += spill.write(buffer, position);
+            }
+            length += count;
+            notifyAll();
+            return true;
+        }
+    }
+
+    private synchronized Reader newReader() {
+        if (producerDone || abandoned) {
+            return null;
+        }
+        ++readers;
+        return new Reader();
+    }
+
+    private synchronized void readerClosed() {
+        --readers;
+        if (readers > 0) {
+            return;
+        }
+        if (producerDone) {
+            release();
+        } else {
+            // nobody wants the rest, the producer stops at the next chunk
+            abandoned = true;
+            PRODUCING.remove(key, this);
+            if (pendingSource != null) {
+                // the queued producer won't start copying anymore
+                try {
+                    pendingSource.close();
+                } catch (IOException ignore) {
+                }
+                pendingSource = null;
+            }
+        }
+    }
+
+    private void release() {
+        memory = null;
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException ignore) {
+            }
+            spill = null;
+        }
+        if (spillFile != null) {
+            if (!spillFile.delete() && spillFile.exists()) {
+                getLogger().log(Level.WARNING,
+                        "Failed to delete " + spillFile);
+                spillFile.deleteOnExit();
+            }
+            spillFile = null;
+        }
+    }
+
+    /**
+     * Reads the buffer from the start, waiting for the producer where it
+     * hasn't got yet.
+     */
+    private class Reader extends InputStream {
+        private long position = 0;
+        private boolean closed = false;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            InputStream stalled = waitForContent();
+            if (stalled != null) {
+                // the producer never started, copy the source here
+                copy(stalled);
+            }
+            FileChannel channel;
+            long spillPosition;
+            int count;
+            synchronized (SharedContent.this) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                if (position >= length) {
+                    if (failure != null) {
+                        throw new IOException(
+                                "Producing the shared content failed", failure);
+                    }
+                    return -1;
+                }
+                count = (int) Math.min(len, length - position);
+                if (position < memoryLength) {
+                    count = (int) Math.min(count, memoryLength - position);
+                    System.arraycopy(memory, (int) position, b, off, count);
+                    position += count;
+                    return count;
+                }
+                channel = spill;
+                spillPosition = position - memoryLength;
+            }
+            // positional reads of the spill file don't need the lock
+            int read = channel.read(ByteBuffer.wrap(b, off, count),
+                    spillPosition);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        /**
+         * Waits until there is content beyond the position or the production
+         * has ended, waking up regularly to check whether the producer has
+         * started at all.
+         *
+         * @return the source if the producer hasn't started in time and the
+         *         caller must copy it, otherwise {@code null}
+         */
+        private InputStream waitForContent() throws IOException {
+            synchronized (SharedContent.this) {
+                while (!closed && position >= length && !complete
+                        && failure == null) {
+                    try {
+                        SharedContent.this.wait(PRODUCER_START_WAIT);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException(
+                                "Interrupted while waiting for shared content");
+                    }
+                    if (pendingSource != null) {
+                        return takePendingSource();
+                    }
+                }
+                return null;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (SharedContent.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            readerClosed();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.vaadin.server.DownloadStream;
+import com.vaadin.util.FileTypeResolver;
+
+/**
+ * Serves downloads whose URLs carry a signed token from
+ * {@link DownloadTokens}, see
+ * {@link GridFileDownloader#setSignedDownloads(String, DownloadTokens)}. The
+ * servlet has no access to any session, so it can run on any server of a
+ * cluster and the transfers don't need to go through the server that holds
+ * the UI.
+ * <p>
+ * Map a subclass to e.g. {@code /download/*}, give it the secret of the
+ * tokens as the {@value #SECRET_PARAMETER} init parameter and implement
+ * {@link #openContent(String)}. The URLs have the form
+ * {@code <mapping>/<token>/<filename>}.
+ */
+public abstract class SignedDownloadServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Name of the init parameter that holds the secret of the tokens.
+     */
+    public static final String SECRET_PARAMETER = "secret";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private DownloadTokens downloadTokens;
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        downloadTokens = createDownloadTokens();
+    }
+
+    /**
+     * Creates the verifier of the tokens. By default the UTF-8 bytes of the
+     * {@value #SECRET_PARAMETER} init parameter are the secret.
+     *
+     * @return the tokens, with the same secret as the downloaders use
+     * @throws ServletException
+     *             if the secret is missing
+     */
+    protected DownloadTokens createDownloadTokens() throws ServletException {
+        String secret = getInitParameter(SECRET_PARAMETER);
+        if (secret == null) {
+            throw new ServletException("Init parameter " + SECRET_PARAMETER
+                    + " is required");
+        }
+        return new DownloadTokens(secret.getBytes(UTF8));
+    }
+
+    /**
+     * Opens the content with the given identity. The identity comes from a
+     * verified token and was returned by
+     * {@link GridFileDownloader.SignedGridStreamResource#getDownloadIdentity()}
+     * , but no user or session is available here.
+     *
+     * @param identity
+     * @return the content, or {@code null} if it doesn't exist anymore
+     * @throws IOException
+     */
+    protected abstract InputStream openContent(String identity)
+            throws IOException;
+
+    /**
+     * Returns the content type of a download with the given file name. By
+     * default the type is resolved from the file extension.
+     *
+     * @param filename
+     * @return the content type
+     */
+    protected String getMIMEType(String filename) {
+        return FileTypeResolver.getMIMEType(filename);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request,
+            HttpServletResponse response) throws ServletException, IOException {
+        String pathInfo = request.getPathInfo();
+        String token = null;
+        if (pathInfo != null && pathInfo.length() > 1) {
+            int slash = pathInfo.indexOf('/', 1);
+            token = pathInfo.substring(1, slash < 0 ? pathInfo.length()
+                    : slash);
+        }
+        DownloadTokens.Token verified = downloadTokens.verify(token);
+        if (verified == null) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN,
+                    "The download link is not valid or has expired");
+            return;
+        }
+        InputStream in = openContent(verified.getIdentity());
+        if (in == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        try {
+            response.setContentType(getMIMEType(verified.getFilename()));
+            // the name is encoded so that it can't break out of the header
+            response.setHeader(DownloadStream.CONTENT_DISPOSITION,
+                    "attachment; "
+                            + DownloadStream.getContentDispositionFilename(verified
+                                    .getFilename()));
+            // the link is personal and short-lived
+            response.setHeader("Cache-Control", "private, no-store");
+            BandwidthLimiter limiter = BandwidthLimiter.getGlobalLimiter();
+            OutputStream out = response.getOutputStream();
+            byte[] buffer = new byte[BandwidthLimiter.CHUNK_SIZE];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                if (limiter.isLimited()) {
+                    limiter.acquire(read);
+                }
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
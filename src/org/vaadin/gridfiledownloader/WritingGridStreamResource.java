@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.vaadin.gridfiledownloader.GridFileDownloader.GridStreamResource;
+
+/**
+ * {@link GridStreamResource} for rows whose content is generated. Instead of
+ * returning a stream, the content is written to the response as it is
+ * produced, so a download takes a constant amount of memory regardless of its
+ * size. The response is sent chunked unless {@link #getContentLength()} tells
+ * the length beforehand.
+ * <p>
+ * Implement {@link #writeContent(OutputStream)} to write the content of the
+ * row given by {@link GridFileDownloader#getRowId()}. Where an
+ * {@link InputStream} is needed, e.g. for ZIP archives, the content is
+ * produced on the {@link GridFileDownloader#setContentExecutor(Executor)
+ * content executor} into a bounded pipe.
+ */
+public abstract class WritingGridStreamResource implements GridStreamResource {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Size of the pipe between the producing thread and the reader of
+     * {@link #getStream()}.
+     */
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    private static Logger getLogger() {
+        return Logger.getLogger(WritingGridStreamResource.class.getName());
+    }
+
+    /**
+     * Writes the content of the row that is being downloaded. The stream is
+     * closed by the caller.
+     *
+     * @param out
+     *            stream to write the content to
+     * @throws IOException
+     *             if writing fails, e.g. because the client went away
+     */
+    public abstract void writeContent(OutputStream out) throws IOException;
+
+    /**
+     * Returns the length of the content if it is known before it is written.
+     * The default is -1, in which case the response is sent chunked.
+     *
+     * @return the length in bytes, or -1 if not known
+     */
+    public long getContentLength() {
+        return -1;
+    }
+
+    /**
+     * Produces the content on the content executor of the downloader and
+     * returns the reading end of the pipe it is written to. The content is
+     * produced only as fast as it is read, and a failure of the producer is
+     * thrown from the stream instead of ending it early.
+     * <p>
+     * Without an executor, if the executor rejects the producer, or when
+     * called from a task of the executor, the content is written to a
+     * temporary file on the calling thread first. A pipe can't be filled and
+     * read by the same thread, and a task that waits for a producer queued
+     * behind it, e.g. the next entries of an archive, would never finish.
+     */
+    @Override
+    public InputStream getStream() {
+        Executor executor = GridFileDownloader.getCurrentContentExecutor();
+        if (executor == null || GridFileDownloader.isContentTask()) {
+            return produceToFile();
+        }
+        final ProducedInputStream in = new ProducedInputStream();
+        final PipedOutputStream out;
+        try {
+            out = new PipedOutputStream(in);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        Runnable producer = GridFileDownloader
+                .withCurrentRow(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            writeContent(out);
+                        } catch (IOException e) {
+                            in.failure = e;
+                        } catch (RuntimeException e) {
+                            in.failure = new IOException(
+                                    "Producing the content failed", e);
+                            getLogger().log(Level.WARNING,
+                                    "Producing the content failed", e);
+                        } finally {
+                            try {
+                                out.close();
+                            } catch (IOException ignore) {
+                            }
+                        }
+                    }
+                });
+        try {
+            executor.execute(producer);
+        } catch (RejectedExecutionException e) {
+            return produceToFile();
+        }
+        return in;
+    }
+
+    /**
+     * Writes the content to a temporary file on the calling thread and
+     * returns a stream of the file that deletes it when closed.
+     */
+    private InputStream produceToFile() {
+        File file = null;
+        try {
+            file = File.createTempFile("gridfiledownloader-produced", ".tmp");
+            OutputStream out = new FileOutputStream(file);
+            try {
+                writeContent(out);
+            } finally {
+                out.close();
+            }
+            InputStream in = new TemporaryFileInputStream(file);
+            file = null;
+            return in;
+        } catch (IOException e) {
+            throw new RuntimeException("Producing the content failed", e);
+        } finally {
+            if (file != null) {
+                TemporaryFileInputStream.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Stream of a temporary file that deletes the file when closed.
+     */
+    private static class TemporaryFileInputStream extends FileInputStream {
+        private final File file;
+
+        private TemporaryFileInputStream(File file) throws IOException {
+            super(file);
+            this.file = file;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                delete(file);
+            }
+        }
+
+        private static void delete(File file) {
+            if (!file.delete() && file.exists()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Reading end of the pipe that reports a failed producer rather than a
+     * normal end of the content.
+     */
+    private static class ProducedInputStream extends PipedInputStream {
+        private volatile IOException failure;
+
+        private ProducedInputStream() {
+            super(PIPE_SIZE);
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                checkFailure();
+            }
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len)
+                throws IOException {
+            int read = super.read(b, off, len);
+            if (read < 0) {
+                checkFailure();
+            }
+            return read;
+        }
+
+        private void checkFailure() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
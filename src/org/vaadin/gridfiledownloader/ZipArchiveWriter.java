@@ -0,0 +1,232 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.vaadin.server.Constants;
+import com.vaadin.ui.UI;
+import com.vaadin.util.CurrentInstance;
+
+/**
+ * Writes the content of several rows as a ZIP archive straight to the
+ * response. While one entry is written, the following ones are opened in
+ * the background so that slow sources overlap with the transfer.
+ */
+class ZipArchiveWriter {
+
+    /**
+     * Number of entries opened ahead of the one being written.
+     */
+    static final int PREFETCH_ENTRIES = 3;
+
+    /**
+     * File name and content of a single archive entry.
+     */
+    static class Entry {
+        final String name;
+        final InputStream stream;
+
+        Entry(String name, InputStream stream) {
+            this.name = name;
+            this.stream = stream;
+        }
+    }
+
+    /**
+     * Entry that is opened in the background. If the archive is abandoned
+     * before the entry gets written, its stream is closed as soon as it has
+     * been opened.
+     */
+    private class PendingEntry implements Runnable {
+        private final Object rowId;
+        private Entry entry;
+        private RuntimeException failure;
+        private boolean done;
+        private boolean abandoned;
+
+        PendingEntry(Object rowId) {
+            this.rowId = rowId;
+        }
+
+        @Override
+        public void run() {
+            Entry opened = null;
+            RuntimeException error = null;
+            Map<Class<?>, CurrentInstance> old = CurrentInstance
+                    .setCurrent(ui);
+            boolean contentTask = GridFileDownloader.startContentTask();
+            try {
+                opened = downloader.openArchiveEntry(rowId);
+            } catch (RuntimeException e) {
+                error = e;
+            } finally {
+                GridFileDownloader.endContentTask(contentTask);
+                CurrentInstance.restoreInstances(old);
+            }
+            synchronized (this) {
+                if (abandoned) {
+                    close(opened);
+                } else {
+                    entry = opened;
+                    failure = error;
+                }
+                done = true;
+                notifyAll();
+            }
+        }
+
+        synchronized Entry get() throws InterruptedIOException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                            "Interrupted while opening archive entry");
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return entry;
+        }
+
+        synchronized void abandon() {
+            abandoned = true;
+            if (done) {
+                close(entry);
+                entry = null;
+            }
+        }
+    }
+
+    private final GridFileDownloader downloader;
+    private final List<Object> rowIds;
+    private final Executor executor;
+    private final UI ui;
+    private final Set<String> names = new HashSet<String>();
+
+    /**
+     * @param downloader
+     *            the downloader that opens the entries
+     * @param rowIds
+     *            rows to include in the archive, in order
+     * @param executor
+     *            executor for opening the following entries, or {@code null}
+     *            to open them one at a time on the writing thread
+     * @param ui
+     *            the UI to make current while opening entries
+     */
+    ZipArchiveWriter(GridFileDownloader downloader, List<Object> rowIds,
+            Executor executor, UI ui) {
+        this.downloader = downloader;
+        this.rowIds = rowIds;
+        this.executor = executor;
+        this.ui = ui;
+    }
+
+    void write(OutputStream out) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(out);
+        Deque<PendingEntry> pending = new ArrayDeque<PendingEntry>();
+        Iterator<Object> rows = rowIds.iterator();
+        try {
+            schedule(pending, rows);
+            while (!pending.isEmpty()) {
+                Entry entry = pending.removeFirst().get();
+                // open the following entries while this one is written
+                schedule(pending, rows);
+                if (entry == null || entry.stream == null) {
+                    continue;
+                }
+                try {
+                    zip.putNextEntry(new ZipEntry(getUniqueName(entry.name)));
+                    byte[] buffer = new byte[Constants.DEFAULT_BUFFER_SIZE];
+                    int read;
+                    while ((read = entry.stream.read(buffer)) > 0) {
+                        zip.write(buffer, 0, read);
+                    }
+                    zip.closeEntry();
+                } finally {
+                    close(entry);
+                }
+            }
+            zip.finish();
+        } finally {
+            for (PendingEntry entry : pending) {
+                entry.abandon();
+            }
+            zip.close();
+        }
+    }
+
+    private void schedule(Deque<PendingEntry> pending, Iterator<Object> rows) {
+        while (pending.size() < PREFETCH_ENTRIES && rows.hasNext()) {
+            PendingEntry entry = new PendingEntry(rows.next());
+            pending.addLast(entry);
+            if (executor == null) {
+                entry.run();
+                return;
+            }
+            try {
+                executor.execute(entry);
+            } catch (RejectedExecutionException e) {
+                entry.run();
+            }
+        }
+    }
+
+    /**
+     * Returns the given name, or if an entry with that name already exists in
+     * the archive, a variant like {@code name (2).ext}.
+     */
+    private String getUniqueName(String name) {
+        if (name == null || name.isEmpty()) {
+            name = "file";
+        }
+        String unique = name;
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 2; !names.add(unique); ++i) {
+            unique = base + " (" + i + ")" + extension;
+        }
+        return unique;
+    }
+
+    private static void close(Entry entry) {
+        if (entry != null && entry.stream != null) {
+            try {
+                entry.stream.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader.client;
+
+import java.io.Serializable;
+
+/**
+ * Progress of a download that is generated in the background.
+ */
+public class GenerationJobState implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public String id;
+    public String filename;
+    public int progress = -1; // percent, -1 if not known
+    public boolean ready = false;
+    public boolean failed = false;
+
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2015-2016 Vaadin Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.gridfiledownloader.client;
+
+import com.vaadin.shared.communication.ClientRpc;
+
+public interface GridFileDownloaderClientRpc extends ClientRpc {
+    public void downloadArchive();
+
+    public void downloadExport();
+
+    public void downloadGenerated(String jobId);
+
+    /**
+     * Downloads the row from the given signed URL, or through the session if
+     * the URL is {@code null}.
+     */
+    public void downloadSigned(String rowKey, String url);
+}
@@ -15,50 +15,240 @@
  */
 package org.vaadin.gridfiledownloader.client;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.vaadin.gridfiledownloader.GridFileDownloader;
 
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
+import com.google.gwt.dom.client.Document;
+import com.google.gwt.dom.client.Element;
+import com.google.gwt.dom.client.IFrameElement;
+import com.google.gwt.dom.client.NodeList;
+import com.google.gwt.dom.client.Style;
 import com.google.gwt.dom.client.Style.TextAlign;
+import com.google.gwt.dom.client.Style.Unit;
+import com.google.gwt.dom.client.Style.Visibility;
 import com.google.gwt.event.dom.client.ClickEvent;
+import com.google.gwt.event.dom.client.ClickHandler;
+import com.google.gwt.event.dom.client.KeyCodes;
+import com.google.gwt.event.dom.client.MouseOverEvent;
+import com.google.gwt.event.dom.client.MouseOverHandler;
+import com.google.gwt.http.client.URL;
+import com.google.gwt.user.client.Event;
+import com.google.gwt.user.client.EventListener;
+import com.google.gwt.user.client.Timer;
+import com.google.gwt.user.client.Window;
+import com.google.gwt.user.client.ui.FlowPanel;
+import com.google.gwt.user.client.ui.Label;
+import com.google.gwt.user.client.ui.RootPanel;
+import com.vaadin.client.BrowserInfo;
 import com.vaadin.client.ComponentConnector;
 import com.vaadin.client.ServerConnector;
 import com.vaadin.client.annotations.OnStateChange;
+import com.vaadin.client.connectors.RpcDataSourceConnector;
 import com.vaadin.client.extensions.FileDownloaderConnector;
+import com.vaadin.client.widget.grid.CellReference;
+import com.vaadin.client.widget.grid.CellStyleGenerator;
+import com.vaadin.client.widget.grid.EventCellReference;
 import com.vaadin.client.ui.VNotification;
 import com.vaadin.client.widget.grid.events.BodyClickHandler;
+import com.vaadin.client.widget.grid.events.BodyKeyDownHandler;
 import com.vaadin.client.widget.grid.events.GridClickEvent;
+import com.vaadin.client.widget.grid.events.GridKeyDownEvent;
 import com.vaadin.client.widgets.Grid;
 import com.vaadin.shared.ui.Connect;
+import com.vaadin.shared.ui.grid.GridState;
 
 import elemental.json.JsonObject;
 
 @Connect(GridFileDownloader.class)
 public class GridFileDownloaderConnector extends FileDownloaderConnector
-        implements BodyClickHandler {
+        implements BodyClickHandler, BodyKeyDownHandler {
+
+    /**
+     * Longest wait in milliseconds before a rejected download is retried.
+     */
+    private static final int MAX_RETRY_DELAY = 60000;
+
+    /**
+     * A download that waits to start or is in progress.
+     */
+    private static class PendingDownload {
+        private final String url;
+        // counted in inFlight, i.e. processed by the server-side
+        private final boolean counted;
+        private int attempt = 0;
+
+        private PendingDownload(String url, boolean counted) {
+            this.url = url;
+            this.counted = counted;
+        }
+    }
 
     private GridFileDownloaderServerRpc rpc = getRpcProxy(GridFileDownloaderServerRpc.class);
     private Grid<JsonObject> grid;
-    private boolean processing = false;
+    private int inFlight = 0;
+    private int processedCount = 0;
+    private int retrying = 0;
+    private List<Timer> retryTimers = new ArrayList<Timer>();
+    private List<IFrameElement> iframes = new ArrayList<IFrameElement>();
+    // downloads that wait for one in progress to finish
+    private List<PendingDownload> waiting = new ArrayList<PendingDownload>();
+    // row keys that are sent through RPC at the end of the event loop
+    private List<String> unsentRowKeys = new ArrayList<String>();
+    private int unsentFirstSequence = 0;
+    // sequence number of the next click whose row is sent through RPC
+    private int nextSequence = 0;
+    private boolean restartRowQueue = false;
+    private final ScheduledCommand sendRowKeys = new ScheduledCommand() {
+
+        @Override
+        public void execute() {
+            sendRowKeys();
+            startWaitingDownloads();
+        }
+    };
+    private FlowPanel jobsPanel = null;
+    private String hoveredRowKey = null;
+    private String prefetchedRowKey = null;
+    private final Timer prefetchTimer = new Timer() {
+
+        @Override
+        public void run() {
+            if (hoveredRowKey != null
+                    && !hoveredRowKey.equals(prefetchedRowKey)) {
+                prefetchedRowKey = hoveredRowKey;
+                rpc.prefetch(hoveredRowKey);
+            }
+        }
+    };
     private static Logger logger = Logger
             .getLogger(GridFileDownloaderConnector.class.getName());
 
+    public GridFileDownloaderConnector() {
+        registerRpc(GridFileDownloaderClientRpc.class,
+                new GridFileDownloaderClientRpc() {
+
+                    @Override
+                    public void downloadArchive() {
+                        openDownload(getResourceUrl("zip"));
+                    }
+
+                    @Override
+                    public void downloadExport() {
+                        openDownload(getResourceUrl("export"));
+                    }
+
+                    @Override
+                    public void downloadGenerated(String jobId) {
+                        openDownload(getJobDownloadUrl(jobId));
+                    }
+
+                    @Override
+                    public void downloadSigned(String rowKey, String url) {
+                        if (url != null) {
+                            openDownload(url);
+                        } else {
+                            downloadThroughSession(rowKey, -1);
+                        }
+                    }
+                });
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     protected void extend(ServerConnector target) {
         grid = (Grid<JsonObject>) ((ComponentConnector) target).getWidget();
         grid.addBodyClickHandler(this);
+        grid.addBodyKeyDownHandler(this);
+        // styled here rather than with a server-side generator, so that the
+        // application can set its own generator on the Grid at any time
+        final CellStyleGenerator<JsonObject> styleGenerator = grid
+                .getCellStyleGenerator();
+        grid.setCellStyleGenerator(new CellStyleGenerator<JsonObject>() {
+
+            @Override
+            public String getStyle(CellReference<JsonObject> cellReference) {
+                String style = styleGenerator != null ? styleGenerator
+                        .getStyle(cellReference) : null;
+                String columnStyle = getColumnStyle(cellReference
+                        .getColumnIndex());
+                if (columnStyle == null) {
+                    return style;
+                }
+                return style != null ? style + " " + columnStyle
+                        : columnStyle;
+            }
+        });
+        grid.addDomHandler(new MouseOverHandler() {
+
+            @Override
+            public void onMouseOver(MouseOverEvent event) {
+                hovered(grid.getEventCell());
+            }
+        }, MouseOverEvent.getType());
+    }
+
+    /**
+     * Hints the server-side to prefetch the row of a download cell once the
+     * pointer has stayed on it for a while.
+     */
+    private void hovered(EventCellReference<JsonObject> cell) {
+        String rowKey = null;
+        if (getState().prefetch && cell != null && cell.isBody()
+                && getState().downloadColumnIndex != null
+                && cell.getColumnIndex() == getState().downloadColumnIndex
+                        .intValue()) {
+            rowKey = getRowKey(cell.getRow());
+        }
+        if (rowKey == null ? hoveredRowKey == null : rowKey
+                .equals(hoveredRowKey)) {
+            return;
+        }
+        hoveredRowKey = rowKey;
+        prefetchTimer.cancel();
+        if (rowKey != null) {
+            prefetchTimer.schedule(Math.max(1, getState().prefetchHoverDelay));
+        }
     }
 
-    @OnStateChange("processing")
+    /**
+     * Returns the style of the cells of the download and open columns.
+     */
+    private String getColumnStyle(int columnIndex) {
+        if (getState().downloadColumnIndex != null
+                && columnIndex == getState().downloadColumnIndex.intValue()) {
+            return "gridfiledownloader-downloadcolumn";
+        }
+        if (getState().openColumnIndex != null
+                && columnIndex == getState().openColumnIndex.intValue()) {
+            return "gridfiledownloader-opencolumn";
+        }
+        return null;
+    }
+
+    @OnStateChange({ "downloadColumnIndex", "openColumnIndex" })
+    void columnsChanged() {
+        if (grid != null) {
+            // restyles the rendered cells
+            grid.setCellStyleGenerator(grid.getCellStyleGenerator());
+        }
+    }
+
+    @OnStateChange("processedCount")
     void processed() {
-        // End of processing is marked by toggle, actual value in state is
-        // irrelevant. Only log toggles that change field contents here (i.e.
-        // not the initial setting of the state).
-        if (processing != false) {
-            processing = false;
+        // The server-side increments the count once for every processed
+        // download, so several downloads may end between state updates.
+        int done = getState().processedCount - processedCount;
+        processedCount = getState().processedCount;
+        if (done > 0 && inFlight > 0) {
+            inFlight = Math.max(0, inFlight - done);
             logger.log(Level.FINE, "GridFileDownloader: processing click done");
+            startWaitingDownloads();
         }
     }
 
@@ -73,18 +263,58 @@ public class GridFileDownloaderConnector extends FileDownloaderConnector
         if (getState().downloadColumnIndex != null
                 && columnIndex == getState().downloadColumnIndex.intValue()) {
             event.stopPropagation();
-            if (!processing) {
-                processing = true;
-                logger.log(Level.FINE,
-                        "GridFileDownloader: started to process click");
-                rpc.download(event.getTargetCell().getRowIndex());
-                GridFileDownloaderConnector.super.onClick(null);
-            } else {
-                downloadIgnoredBecauseProcessing();
-            }
+            startDownload((JsonObject) event.getTargetCell().getRow(), event
+                    .getTargetCell().getRowIndex());
+        } else if (getState().openColumnIndex != null
+                && columnIndex == getState().openColumnIndex.intValue()) {
+            event.stopPropagation();
+            open((JsonObject) event.getTargetCell().getRow());
+        }
+    }
+
+    /**
+     * Starts the download of the row whose download cell has the focus when
+     * Enter is pressed, so that downloads can be queued from the keyboard.
+     * Enter on an open cell opens the row.
+     */
+    @Override
+    public void onKeyDown(GridKeyDownEvent event) {
+        CellReference<?> cell = event.getFocusedCell();
+        if (event.getNativeKeyCode() != KeyCodes.KEY_ENTER) {
+            return;
+        }
+        if (getState().downloadColumnIndex != null
+                && cell.getColumnIndex() == getState().downloadColumnIndex
+                        .intValue()) {
+            event.preventDefault();
+            startDownload((JsonObject) cell.getRow(), cell.getRowIndex());
+        } else if (getState().openColumnIndex != null
+                && cell.getColumnIndex() == getState().openColumnIndex
+                        .intValue()) {
+            event.preventDefault();
+            open((JsonObject) cell.getRow());
         }
     }
 
+    /**
+     * Opens the content of the given row in a new browser window. The window
+     * is opened while the event is handled, so that popup blockers allow it,
+     * which is why the row must be identified by the row key in the URL.
+     *
+     * @param row
+     *            row data, or {@code null} if not available
+     */
+    private void open(JsonObject row) {
+        String rowKey = getRowKey(row);
+        String url = rowKey != null ? getOpenUrl(rowKey) : null;
+        if (url == null) {
+            logger.log(Level.WARNING,
+                    "GridFileDownloader: row can't be opened without its key");
+            return;
+        }
+        Window.open(url, "_blank", "");
+    }
+
     /**
      * Trigger the download for the given column and row from some other
      * ClickEvent than GridClickEvent. This might be required if only parts of
@@ -96,20 +326,434 @@ public class GridFileDownloaderConnector extends FileDownloaderConnector
      * @param rowIndex
      */
     public void remoteClick(int columnIndex, int rowIndex) {
-        if (!processing) {
-            processing = true;
+        startDownload(grid.getDataSource().getRow(rowIndex), rowIndex);
+    }
+
+    /**
+     * Trigger the downloads of several rows at once, otherwise like
+     * {@link #remoteClick(int, int)}. Rows that are identified through RPC
+     * are all sent in a single call, and the downloads beyond the concurrency
+     * limit wait in the queue, as far as it has room for them.
+     *
+     * @param columnIndex
+     * @param rowIndexes
+     */
+    public void remoteClick(int columnIndex, int[] rowIndexes) {
+        for (int rowIndex : rowIndexes) {
+            remoteClick(columnIndex, rowIndex);
+        }
+    }
+
+    /**
+     * Starts the download for the given row. If the row data is available and
+     * the server-side allows it, the row key is sent as part of the download
+     * URL. Otherwise the row key, or the row index if even that is not
+     * available, is sent through RPC before the download request. The keys of
+     * all rows that are started during the same event loop are sent in a
+     * single RPC call.
+     *
+     * @param row
+     *            row data, or {@code null} if not available
+     * @param rowIndex
+     */
+    private void startDownload(JsonObject row, int rowIndex) {
+        String rowKey = getRowKey(row);
+        if (getState().signedDownloads && rowKey != null) {
+            // the server-side answers with the URL to download from
+            rpc.signedDownload(rowKey);
+            return;
+        }
+        if (getState().backgroundGeneration && rowKey != null) {
+            // the file is downloaded once the server-side has generated it
+            rpc.generate(rowKey);
+            return;
+        }
+        downloadThroughSession(rowKey, rowIndex);
+    }
+
+    /**
+     * Downloads the row from the server-side of this extension. The download
+     * starts right away if fewer than the maximum number of downloads are in
+     * progress, and otherwise waits for one of them to finish if the queue has
+     * room for it.
+     *
+     * @param rowKey
+     *            the row key, or {@code null} if not available
+     * @param rowIndex
+     *            the row index, used if the row key is not available
+     */
+    private void downloadThroughSession(String rowKey, int rowIndex) {
+        int pending = inFlight + waiting.size() + retrying;
+        if (pending >= getState().maxConcurrentDownloads
+                + getState().maxQueuedDownloads) {
+            downloadIgnoredBecauseProcessing();
+            return;
+        }
+        if (rowKey != null && getState().rowKeyInURL) {
+            waiting.add(new PendingDownload(getRowDownloadUrl(rowKey), true));
+        } else {
+            // the request takes the row queued with its sequence number, and
+            // rows left by requests that never arrived are dropped when
+            // nothing is in progress
+            int sequence = nextSequence++;
+            boolean restart = inFlight == 0 && waiting.isEmpty()
+                    && retrying == 0 && unsentRowKeys.isEmpty();
+            if (rowKey != null) {
+                // resolved through the key mapper without touching the
+                // container, and not affected by sorting or filtering
+                if (unsentRowKeys.isEmpty()) {
+                    unsentFirstSequence = sequence;
+                    restartRowQueue = restart;
+                    Scheduler.get().scheduleFinally(sendRowKeys);
+                }
+                unsentRowKeys.add(rowKey);
+            } else {
+                // keeps the sequence numbers of the unsent rows consecutive
+                sendRowKeys();
+                if (restart) {
+                    rpc.downloadRows(new ArrayList<String>(), sequence, true);
+                }
+                rpc.download(rowIndex, sequence);
+            }
+            waiting.add(new PendingDownload(getSequenceDownloadUrl(sequence),
+                    true));
+        }
+        if (unsentRowKeys.isEmpty()) {
+            startWaitingDownloads();
+        }
+    }
+
+    /**
+     * Sends the row keys collected during the event loop in a single call.
+     */
+    private void sendRowKeys() {
+        if (unsentRowKeys.isEmpty()) {
+            return;
+        }
+        rpc.downloadRows(new ArrayList<String>(unsentRowKeys),
+                unsentFirstSequence, restartRowQueue);
+        unsentRowKeys.clear();
+    }
+
+    /**
+     * Opens the waiting downloads as far as the concurrency limit allows.
+     */
+    private void startWaitingDownloads() {
+        while (inFlight < getState().maxConcurrentDownloads
+                && !waiting.isEmpty()) {
+            if (inFlight == 0) {
+                // previous downloads are done, make sure their iframes are
+                // not on dom tree anymore
+                removeIFrames();
+            }
+            ++inFlight;
             logger.log(Level.FINE,
                     "GridFileDownloader: started to process click");
-            rpc.download(rowIndex);
-            GridFileDownloaderConnector.super.onClick(null);
-        } else {
+            openDownload(waiting.remove(0));
+        }
+    }
+
+    /**
+     * Retries the download later if the page that loaded in its iframe tells
+     * that the server-side rejected it. A download that succeeds doesn't
+     * replace the page of the iframe. Every retry waits twice as long as the
+     * previous one, starting from the time the server-side asks for.
+     */
+    private void downloadLoaded(IFrameElement iframe,
+            final PendingDownload download) {
+        int retryAfter = getRetryAfter(iframe);
+        if (retryAfter < 0) {
+            return;
+        }
+        iframe.removeFromParent();
+        iframes.remove(iframe);
+        if (download.counted) {
+            // the server-side doesn't count a rejected request as processed,
+            // so it stops being in flight when the rejection is loaded
+            inFlight = Math.max(0, inFlight - 1);
+        }
+        boolean retry = download.attempt < getState().maxDownloadRetries;
+        if (download.attempt == 0 || !retry) {
             downloadIgnoredBecauseProcessing();
         }
+        if (retry) {
+            int delay = (int) Math.min(MAX_RETRY_DELAY, retryAfter * 1000L
+                    << Math.min(download.attempt, 16));
+            // spread the retries of many clients rejected at the same time
+            delay += (int) (delay * Math.random() / 4);
+            ++download.attempt;
+            if (download.counted) {
+                ++retrying;
+            }
+            Timer timer = new Timer() {
+
+                @Override
+                public void run() {
+                    retryTimers.remove(this);
+                    if (download.counted) {
+                        --retrying;
+                        waiting.add(0, download);
+                    } else {
+                        openDownload(download);
+                    }
+                    startWaitingDownloads();
+                }
+            };
+            retryTimers.add(timer);
+            timer.schedule(delay);
+        } else {
+            startWaitingDownloads();
+        }
+    }
+
+    /**
+     * Returns the retry time from the page of a rejected download.
+     *
+     * @return time in seconds, or -1 if the page is not a rejection
+     */
+    private int getRetryAfter(IFrameElement iframe) {
+        Document document;
+        try {
+            document = iframe.getContentDocument();
+        } catch (RuntimeException e) {
+            // a signed download from another origin
+            return -1;
+        }
+        if (document == null) {
+            return -1;
+        }
+        NodeList<Element> metas = document.getElementsByTagName("meta");
+        for (int i = 0; i < metas.getLength(); ++i) {
+            Element meta = metas.getItem(i);
+            if (GridFileDownloaderState.RETRY_AFTER_META.equals(meta
+                    .getAttribute("name"))) {
+                try {
+                    return Math.max(1,
+                            Integer.parseInt(meta.getAttribute("content")));
+                } catch (NumberFormatException e) {
+                    return 1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private String getRowKey(JsonObject row) {
+        if (row != null && row.hasKey(GridState.JSONKEY_ROWKEY)) {
+            return row.getString(GridState.JSONKEY_ROWKEY);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the download URL that identifies the given row without a
+     * separate RPC call, i.e. {@code .../<connectorId>/dl/k/<rowKey>}.
+     *
+     * @param rowKey
+     * @return download URL or {@code null} if the resource is not available
+     */
+    protected String getRowDownloadUrl(String rowKey) {
+        return getDownloadUrl(GridFileDownloaderState.ROW_KEY_PATH, rowKey);
+    }
+
+    /**
+     * Returns the download URL of the click with the given sequence number,
+     * whose row is sent through RPC, i.e.
+     * {@code .../<connectorId>/dl/s/<sequence>}.
+     *
+     * @param sequence
+     * @return download URL or {@code null} if the resource is not available
+     */
+    protected String getSequenceDownloadUrl(int sequence) {
+        return getDownloadUrl(GridFileDownloaderState.SEQUENCE_PATH,
+                String.valueOf(sequence));
+    }
+
+    /**
+     * Returns the download URL of a file that was generated in the background,
+     * i.e. {@code .../<connectorId>/dl/j/<jobId>}.
+     *
+     * @param jobId
+     * @return download URL or {@code null} if the resource is not available
+     */
+    protected String getJobDownloadUrl(String jobId) {
+        return getDownloadUrl(GridFileDownloaderState.JOB_PATH, jobId);
+    }
+
+    /**
+     * Returns the URL that opens the content of the given row, i.e.
+     * {@code .../<connectorId>/dl/o/<openToken>/<dataProviderId>/<rowKey>}.
+     *
+     * @param rowKey
+     * @return open URL or {@code null} if the resource is not available
+     */
+    protected String getOpenUrl(String rowKey) {
+        // the row keys are only unique within the data provider, which is
+        // replaced along with the container of the Grid
+        String dataProviderId = null;
+        for (ServerConnector child : getParent().getChildren()) {
+            if (child instanceof RpcDataSourceConnector) {
+                dataProviderId = child.getConnectorId();
+            }
+        }
+        if (getState().openToken == null || dataProviderId == null) {
+            return null;
+        }
+        return getDownloadUrl(GridFileDownloaderState.OPEN_PATH + "/"
+                + URL.encodePathSegment(getState().openToken) + "/"
+                + URL.encodePathSegment(dataProviderId), rowKey);
+    }
+
+    private String getDownloadUrl(String type, String value) {
+        String url = getResourceUrl("dl");
+        if (url == null) {
+            return null;
+        }
+        // the resource URL may end with the file name of the previous
+        // download, cut it off after the download key
+        String base = "/" + getConnectorId() + "/dl";
+        int index = url.indexOf(base + "/");
+        if (index < 0 && url.endsWith(base)) {
+            index = url.length() - base.length();
+        }
+        if (index < 0) {
+            return null;
+        }
+        return url.substring(0, index + base.length()) + "/" + type + "/"
+                + URL.encodePathSegment(value);
+    }
+
+    /**
+     * Shows the background generations with their progress. A running
+     * generation can be cancelled, and a generated file downloaded again or
+     * discarded.
+     */
+    @OnStateChange("jobs")
+    void jobsChanged() {
+        if (jobsPanel == null) {
+            if (getState().jobs.isEmpty()) {
+                return;
+            }
+            jobsPanel = new FlowPanel();
+            jobsPanel.setStyleName("gridfiledownloader-jobs");
+            RootPanel.get().add(jobsPanel);
+        }
+        jobsPanel.clear();
+        for (final GenerationJobState job : getState().jobs) {
+            FlowPanel row = new FlowPanel();
+            row.setStyleName("gridfiledownloader-job");
+            String text = job.filename != null ? job.filename : "";
+            if (job.failed) {
+                row.addStyleDependentName("failed");
+                text += " \u2013 failed";
+            } else if (job.ready) {
+                row.addStyleDependentName("ready");
+            } else if (job.progress >= 0) {
+                text += " \u2013 " + job.progress + " %";
+            } else {
+                text += " \u2013 preparing";
+            }
+            Label label = new Label(text);
+            label.setStyleName("gridfiledownloader-job-caption");
+            if (job.ready) {
+                label.addClickHandler(new ClickHandler() {
+
+                    @Override
+                    public void onClick(ClickEvent event) {
+                        openDownload(getJobDownloadUrl(job.id));
+                    }
+                });
+            }
+            Label cancel = new Label("\u00d7");
+            cancel.setStyleName("gridfiledownloader-job-cancel");
+            cancel.addClickHandler(new ClickHandler() {
+
+                @Override
+                public void onClick(ClickEvent event) {
+                    rpc.cancelGeneration(job.id);
+                }
+            });
+            row.add(label);
+            row.add(cancel);
+            jobsPanel.add(row);
+        }
+        jobsPanel.setVisible(!getState().jobs.isEmpty());
+    }
+
+    /**
+     * Opens the given download URL in a hidden iframe, or in a new window on
+     * iOS. Every download in progress has an iframe of its own.
+     *
+     * @param url
+     */
+    protected void openDownload(String url) {
+        openDownload(new PendingDownload(url, false));
+    }
+
+    private void openDownload(final PendingDownload download) {
+        String url = download.url;
+        if (url == null || url.isEmpty()) {
+            return;
+        }
+        if (BrowserInfo.get().isIOS()) {
+            Window.open(url, "_blank", "");
+            return;
+        }
+        final IFrameElement iframe = Document.get().createIFrameElement();
+        iframes.add(iframe);
+        Event.sinkEvents(iframe, Event.ONLOAD);
+        Event.setEventListener(iframe, new EventListener() {
+
+            @Override
+            public void onBrowserEvent(Event event) {
+                if (event.getTypeInt() == Event.ONLOAD) {
+                    downloadLoaded(iframe, download);
+                }
+            }
+        });
+
+        Style style = iframe.getStyle();
+        style.setVisibility(Visibility.HIDDEN);
+        style.setHeight(0, Unit.PX);
+        style.setWidth(0, Unit.PX);
+
+        iframe.setFrameBorder(0);
+        iframe.setTabIndex(-1);
+        iframe.setSrc(url);
+        RootPanel.getBodyElement().appendChild(iframe);
+    }
+
+    @Override
+    public void setParent(ServerConnector parent) {
+        super.setParent(parent);
+        if (parent == null) {
+            prefetchTimer.cancel();
+            waiting.clear();
+            unsentRowKeys.clear();
+            for (Timer timer : retryTimers) {
+                timer.cancel();
+            }
+            retryTimers.clear();
+            retrying = 0;
+            removeIFrames();
+            if (jobsPanel != null) {
+                jobsPanel.removeFromParent();
+                jobsPanel = null;
+            }
+        }
+    }
+
+    private void removeIFrames() {
+        for (IFrameElement iframe : iframes) {
+            iframe.removeFromParent();
+        }
+        iframes.clear();
     }
 
     /**
      * Display notification for informing the user that a new download couldn't
-     * be triggered because previous download is still processing.
+     * be triggered because previous download is still processing, or that the
+     * server-side is too busy for it right now.
      */
     protected void downloadIgnoredBecauseProcessing() {
         VNotification n = VNotification.createNotification(
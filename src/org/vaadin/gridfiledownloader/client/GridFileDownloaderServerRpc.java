@@ -15,8 +15,59 @@
  */
 package org.vaadin.gridfiledownloader.client;
 
+import java.util.List;
+
 import com.vaadin.shared.communication.ServerRpc;
 
 public interface GridFileDownloaderServerRpc extends ServerRpc {
-    public void download(Integer rowIndex);
+    /**
+     * Tells the row of the next download by its index. Only used if the row
+     * data, and thus the row key, is not available on the client-side.
+     *
+     * @param rowIndex
+     * @param sequence
+     *            sequence number of the click, which the download request
+     *            carries in its URL
+     * @see #downloadRows(List, int, boolean)
+     */
+    public void download(Integer rowIndex, int sequence);
+
+    /**
+     * Tells the rows of the next downloads by the keys the Grid uses for them
+     * on the client-side. The download requests that follow take the rows by
+     * the sequence numbers in their URLs.
+     *
+     * @param rowKeys
+     * @param firstSequence
+     *            sequence number of the click of the first row, the following
+     *            rows have the following numbers
+     * @param restart
+     *            {@code true} if the client-side has no downloads in progress,
+     *            so rows that are still queued on the server-side are stale
+     */
+    public void downloadRows(List<String> rowKeys, int firstSequence,
+            boolean restart);
+
+    /**
+     * Hints that the row with the given key is likely to be downloaded soon.
+     */
+    public void prefetch(String rowKey);
+
+    /**
+     * Starts generating the content of the row with the given key in the
+     * background.
+     */
+    public void generate(String rowKey);
+
+    /**
+     * Asks for a signed URL of the row with the given key, which is sent back
+     * with {@link GridFileDownloaderClientRpc#downloadSigned(String, String)}.
+     */
+    public void signedDownload(String rowKey);
+
+    /**
+     * Cancels the background generation with the given id, or discards its
+     * file if it is ready already.
+     */
+    public void cancelGeneration(String jobId);
 }
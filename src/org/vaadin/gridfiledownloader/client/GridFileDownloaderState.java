@@ -15,13 +15,58 @@
  */
 package org.vaadin.gridfiledownloader.client;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.vaadin.shared.AbstractComponentState;
 
 public class GridFileDownloaderState extends AbstractComponentState {
 
+    /**
+     * Path segment after the download key that marks the row key, e.g.
+     * {@code dl/k/12}.
+     */
+    public static final String ROW_KEY_PATH = "k";
+
+    /**
+     * Path segment after the download key that marks a file generated in the
+     * background, e.g. {@code dl/j/<jobId>}.
+     */
+    public static final String JOB_PATH = "j";
+
+    /**
+     * Path segment after the download key that marks the sequence number of
+     * the click whose row was sent through RPC, e.g. {@code dl/s/3}.
+     */
+    public static final String SEQUENCE_PATH = "s";
+
+    /**
+     * Path segment after the download key that marks content opened from the
+     * open column, e.g. {@code dl/o/<openToken>/<dataProviderId>/12}. The
+     * connector id of the Grid's data provider is part of the path, since the
+     * row keys start over when the container of the Grid is replaced.
+     */
+    public static final String OPEN_PATH = "o";
+
+    /**
+     * Name of the meta element that tells the retry time in seconds on the
+     * page of a rejected download.
+     */
+    public static final String RETRY_AFTER_META = "gridfiledownloader-retry-after";
+
     public Integer downloadColumnIndex = null;
     public Integer openColumnIndex = null;
-    public boolean processing = false; // toggle to signal end of processing
+    public String openToken = null;
+    public int processedCount = 0; // incremented when a download is processed
+    public int maxConcurrentDownloads = 1;
+    public int maxQueuedDownloads = 0;
+    public int maxDownloadRetries = 3;
+    public boolean rowKeyInURL = true;
+    public boolean prefetch = false;
+    public int prefetchHoverDelay = 150; // ms
+    public boolean backgroundGeneration = false;
+    public boolean signedDownloads = false;
+    public List<GenerationJobState> jobs = new ArrayList<GenerationJobState>();
     public int notificationDelay = -1;
     public String processingNotificationType = "humanized";
     public String processingCaption = "Processing previous download request.";
@@ -15,13 +15,14 @@
  */
 package org.vaadin.gridfiledownloadertest;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 
 import javax.servlet.annotation.WebServlet;
 
 import org.vaadin.gridfiledownloader.GridFileDownloader;
+import org.vaadin.gridfiledownloader.WritingGridStreamResource;
 
 import com.vaadin.annotations.Push;
 import com.vaadin.annotations.Theme;
@@ -51,7 +52,28 @@ public class GridFileDownloaderUI extends UI {
     public static class Servlet extends VaadinServlet {
     }
 
-    private DownloadPojo downloadPojo;
+    private DemoDownloader downloader;
+
+    /**
+     * Exposes the row of the download being written. Several downloads may
+     * run at the same time, so the row isn't kept in a field of the UI.
+     */
+    public static class DemoDownloader extends GridFileDownloader {
+
+        public DemoDownloader(Grid grid,
+                GridStreamResource gridStreamResource) {
+            super(grid, gridStreamResource);
+        }
+
+        public DownloadPojo getDownloadPojo() {
+            try {
+                return (DownloadPojo) getRowId();
+            } catch (ClassCastException e) {
+                throw new IllegalArgumentException(
+                        "RowId must be DownloadPojo", e);
+            }
+        }
+    }
 
     @SuppressWarnings("unchecked")
     @Override
@@ -103,51 +125,47 @@ public class GridFileDownloaderUI extends UI {
      * @param grid
      */
     private void addGridFileDownloader(Grid grid) {
-        new GridFileDownloader(grid,
-                new GridFileDownloader.GridStreamResource() {
-
-                    @Override
-                    public InputStream getStream() {
-                        byte[] data = downloadPojo.getData();
-                        if (data == null) {
-                            return new ByteArrayInputStream(new byte[0]);
-                        }
-                        return new ByteArrayInputStream(data);
-                    }
+        downloader = new DemoDownloader(grid, new WritingGridStreamResource() {
 
-                    @Override
-                    public String getFilename() {
-                        return downloadPojo.getName();
-                    }
+            @Override
+            public void writeContent(OutputStream out) throws IOException {
+                downloader.getDownloadPojo().writeData(out);
+            }
 
-                }) {
+            @Override
+            public long getContentLength() {
+                return DownloadPojo.SIZE;
+            }
 
             @Override
-            protected void setRowId(Object rowId) {
-                try {
-                    downloadPojo = (DownloadPojo) rowId;
-                    super.setRowId(rowId);
-                } catch (ClassCastException e) {
-                    throw new IllegalArgumentException(
-                            "RowId must be DownloadPojo", e);
-                }
+            public String getFilename() {
+                return downloader.getDownloadPojo().getName();
             }
-        };
+
+        });
     }
 
     public class DownloadPojo implements Serializable {
         private static final long serialVersionUID = 1L;
 
+        static final long SIZE = 1024 * 1024 * 1024;
+
         String name;
 
         public DownloadPojo(int selectedRow) {
             name = "file " + selectedRow + ".txt";
         }
 
-        public byte[] getData() {
-            int writeAtOnce = 1024 * 1024 * 1024;
-            byte[] b = new byte[writeAtOnce];
-            return b;
+        /**
+         * Writes the content a chunk at a time, so that it never needs to be
+         * in memory as a whole.
+         */
+        public void writeData(OutputStream out) throws IOException {
+            byte[] chunk = new byte[64 * 1024];
+            for (long written = 0; written < SIZE; written += chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, SIZE
+                        - written));
+            }
         }
 
         public String getName() {